@@ -0,0 +1,17 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+// Optional block transfer for devices used by Z180 DMA. A Computer or
+// ComputerIO that also implements this interface is offered all remaining
+// bytes of a DMA memory<->I/O transfer at once (see Z180.setDmaBulk()),
+// instead of one inPort()/outPort() per byte. Each returns the number
+// of bytes actually transferred, which may be less than 'len' (the
+// rest will be offered again later) but should not be 0 while the
+// device is requesting DMA.
+public interface BlockIO {
+	// bytes read from 'port' into buf[off..off+len-1]
+	int inBlock(int port, byte[] buf, int off, int len);
+	// bytes in buf[off..off+len-1] written to 'port'
+	int outBlock(int port, byte[] buf, int off, int len);
+}
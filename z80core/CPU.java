@@ -1,6 +1,8 @@
 // Copyright (c) 2018 Douglas Miller <durgadas311@gmail.com>
 package z80core;
 
+import java.nio.ByteBuffer;
+
 public interface CPU {
 	int getRegA();
 	int getRegB();
@@ -50,7 +52,13 @@ public interface CPU {
 	boolean isCarryFlag();
 	//
 	void reset();
+	// Binary snapshot of the CPU state, see each CPU for details
+	int stateSize();	// bytes written by saveState()
+	void saveState(ByteBuffer buf);
+	void loadState(ByteBuffer buf);	// IllegalArgumentException if wrong CPU/version
 	boolean isIE();
+	// Interrupt inputs (INT, NMI, INT1, INT2) may be changed from any
+	// thread, without locking. The CPU sees them between instructions.
 	boolean isINTLine();
 	void setINTLine(boolean intLine);
 	boolean hasNMI();	// not for 8080/8085
@@ -64,6 +72,13 @@ public interface CPU {
 	void setINT2Line(boolean intLine);
 	int execute();	// num clock cycles, - for interrupt, etc
 	String specialCycle(); // for tracing, if execute() < 0
+	int specialCycleCode(); // SpecialCycle code, if execute() < 0
+	int runFor(int tStates);	// num clock cycles actually run
+	void stopRun();	// cause runFor() to return early
+	int getRunCycles();	// T-states so far in runFor(), at instruction start
+	void setCycleListener(CycleListener lstn); // special cycles in runFor()
+	void setProfiler(Profiler prof); // per-PC counts in runFor(), or null
+	void setPageTable(PageTable pages); // direct memory access, or null
 	void resetBreakpoints();
 	String dumpDebug();
 }
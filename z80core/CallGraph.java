@@ -0,0 +1,237 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.IntFunction;
+
+// Call-graph profile, kept by a shadow call stack. Set on a Profiler
+// with setCallGraph(), and filled in by CPU.runFor() along with it.
+//
+// A frame is pushed by CALL (and 8080 alternates DD/ED/FD), RST (and
+// 8085 RSTV), or an interrupt (INT, NMI, TRAP, etc.), when SP went down
+// by 2, and is identified by the entry address and the address of the
+// return address on the stack. Any instruction of the RET
+// family (RET cc, RETI, RETN) that takes SP up by 2 pops the frame whose
+// return address it used, and all frames above it. So a routine may
+// alter its return address, or switch stacks (if SP is restored before
+// RET), and longjmp-style returns to an outer frame are handled. A RET
+// that matches no frame (e.g. PUSH/RET as a jump) is ignored.
+//
+// Exclusive T-states are kept for each distinct call path, and inclusive
+// T-states and calls for each entry address (recursion counted once).
+// Addresses are as in the Profiler (Z180 physical).
+public class CallGraph {
+	static final int INTR = 0x100;	// 'op' for special cycles
+	private static final int INT_FLAG = 1 << 20;	// entry by interrupt
+	private static final int MAX_DEPTH = 1024;
+
+	// shadow stack
+	private final int[] fsp = new int[MAX_DEPTH];
+	private final int[] fnode = new int[MAX_DEPTH];
+	private final long[] fstart = new long[MAX_DEPTH];
+	private int depth = 0;
+	private int cur = 0;	// node of top frame, 0 if none
+	private long lost = 0;	// calls not tracked, too deep
+	private long now = 0;
+
+	// call paths, node 0 is the root (no frame)
+	private int[] parent = new int[256];
+	private int[] entry = new int[256];
+	private long[] excl = new long[256];
+	private int nodes = 1;
+	private final HashMap<Long, Integer> child = new HashMap<Long, Integer>();
+
+	// per entry address
+	private final long[] incl;
+	private final long[] calls;
+	private final int[] active;
+	private final int mask;
+	private final boolean i8080;	// DD/ED/FD are CALL
+	private final boolean i8085;	// CB is RSTV
+
+	// 'bits' of address, as for the Profiler
+	public CallGraph(int bits) {
+		this(bits, false, false);
+	}
+
+	public CallGraph(CPU cpu) {
+		this(cpu instanceof Z180 ? 20 : 16,
+			cpu instanceof I8080, cpu instanceof I8085);
+	}
+
+	private CallGraph(int bits, boolean i8080, boolean i8085) {
+		incl = new long[1 << bits];
+		calls = new long[1 << bits];
+		active = new int[1 << bits];
+		mask = (1 << bits) - 1;
+		entry[0] = -1;
+		this.i8080 = i8080;
+		this.i8085 = i8085;
+	}
+
+	private boolean isCall(int op) {
+		if (op == 0xcd || (op & 0xc7) == 0xc4 || (op & 0xc7) == 0xc7) {
+			return true;
+		}
+		if (i8080) {
+			return op == 0xdd || op == 0xed || op == 0xfd;
+		}
+		return i8085 && op == 0xcb;
+	}
+
+	private static boolean isRet(int op) {
+		// RET, RET cc, 8080 alt RET, ED RETI/RETN (second byte)
+		return op == 0xc9 || (op & 0xc7) == 0xc0 || op == 0xd9 ||
+			(op & 0xc7) == 0x45;
+	}
+
+	// HALT, etc.
+	void tick(int t) {
+		now += t;
+		excl[cur] += t;
+	}
+
+	// After an instruction (or special cycle, 'op' == INTR) of 't'
+	// T-states, with last opcode 'op', SP going from 'osp' to 'sp',
+	// and now at 'pc'.
+	void step(int t, int osp, int sp, int op, int pc) {
+		now += t;
+		excl[cur] += t;
+		if (sp == ((osp - 2) & 0xffff)) {
+			if (op == INTR) {
+				push((pc & mask) | INT_FLAG, sp);
+			} else if (isCall(op)) {
+				push(pc & mask, sp);
+			}
+		} else if (sp == ((osp + 2) & 0xffff) && op != INTR && isRet(op)) {
+			int ra = (sp - 2) & 0xffff;
+			for (int x = depth - 1; x >= 0; --x) {
+				if (fsp[x] == ra) {
+					while (depth > x) {
+						pop();
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	private void push(int ent, int sp) {
+		if (depth >= MAX_DEPTH) {
+			++lost;
+			return;
+		}
+		long key = ((long)cur << 21) | ent;
+		Integer n = child.get(key);
+		if (n == null) {
+			n = newNode(ent);
+			child.put(key, n);
+		}
+		int a = ent & mask;
+		++calls[a];
+		++active[a];
+		fsp[depth] = sp;
+		fnode[depth] = n;
+		fstart[depth] = now;
+		++depth;
+		cur = n;
+	}
+
+	private void pop() {
+		--depth;
+		int a = entry[fnode[depth]] & mask;
+		if (--active[a] == 0) {
+			incl[a] += now - fstart[depth];
+		}
+		cur = depth > 0 ? fnode[depth - 1] : 0;
+	}
+
+	private int newNode(int ent) {
+		if (nodes >= parent.length) {
+			int n = parent.length * 2;
+			parent = Arrays.copyOf(parent, n);
+			entry = Arrays.copyOf(entry, n);
+			excl = Arrays.copyOf(excl, n);
+		}
+		parent[nodes] = cur;
+		entry[nodes] = ent;
+		return nodes++;
+	}
+
+	// Discard everything, e.g. after CPU reset.
+	public void clear() {
+		depth = cur = 0;
+		nodes = 1;
+		excl[0] = 0;
+		lost = now = 0;
+		child.clear();
+		Arrays.fill(incl, 0);
+		Arrays.fill(calls, 0);
+		Arrays.fill(active, 0);
+	}
+
+	public int getDepth() { return depth; }
+	public long getLost() { return lost; }
+
+	public long getCalls(int adr) { return calls[adr & mask]; }
+
+	// Inclusive T-states in 'adr', including calls not yet returned
+	public long getInclusive(int adr) {
+		adr &= mask;
+		long n = incl[adr];
+		for (int x = 0; x < depth; ++x) {
+			if ((entry[fnode[x]] & mask) == adr) {
+				n += now - fstart[x];
+				break;
+			}
+		}
+		return n;
+	}
+
+	// Exclusive T-states in 'adr', over all call paths
+	public long getExclusive(int adr) {
+		adr &= mask;
+		long n = 0;
+		for (int x = 1; x < nodes; ++x) {
+			if ((entry[x] & mask) == adr) {
+				n += excl[x];
+			}
+		}
+		return n;
+	}
+
+	// Folded stacks ("a;b;c T-states" lines), as used by flame graph
+	// tools. Frames are named by 'names' (may be null), given the
+	// entry address; interrupt entries are prefixed with "int_".
+	public void writeFolded(PrintStream out, IntFunction<String> names) {
+		StringBuilder sb = new StringBuilder();
+		int[] path = new int[MAX_DEPTH + 1];
+		for (int x = 0; x < nodes; ++x) {
+			if (excl[x] == 0) {
+				continue;
+			}
+			int n = 0;
+			for (int y = x; y != 0; y = parent[y]) {
+				path[n++] = y;
+			}
+			sb.setLength(0);
+			sb.append("top");
+			while (n > 0) {
+				int e = entry[path[--n]];
+				sb.append(';');
+				if ((e & INT_FLAG) != 0) {
+					sb.append("int_");
+				}
+				e &= mask;
+				sb.append(names != null ? names.apply(e) :
+					String.format(mask > 0xffff ? "%05x" : "%04x", e));
+			}
+			sb.append(' ');
+			sb.append(excl[x]);
+			out.println(sb);
+		}
+	}
+}
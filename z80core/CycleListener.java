@@ -0,0 +1,11 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+// Notification of special cycles (INT, NMI, DMA, TRAP, ...) that occur
+// during CPU.runFor(). 'cycles' is the (positive) number of clock cycles
+// consumed. cpu.specialCycleCode() identifies the type of cycle
+// (see SpecialCycle).
+public interface CycleListener {
+	void specialCycle(CPU cpu, int cycles);
+}
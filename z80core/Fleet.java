@@ -0,0 +1,140 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+
+// Runs many independent CPUs (each with its own Computer) on a pool of
+// threads. Each CPU runs for a quantum of T-states at a time, using
+// CPU.runFor(), and then goes to the back of its thread's queue; idle
+// threads steal work from busy ones. A CPU is done when it has used
+// its quota of T-states, or when it stops early (CPU.stopRun()).
+//
+// CPUs, and their Computers, are only ever used by one thread at a time,
+// but not always the same thread. Nothing is shared between CPUs while
+// running, so a CPU must not share (unsynchronized) state with another.
+public class Fleet {
+	public interface Listener {
+		// 'cpu' is done, after 'cycles' T-states. Called on a pool
+		// thread, so must be thread-safe if it touches shared state.
+		void done(CPU cpu, long cycles);
+	}
+
+	private class Instance implements Runnable {
+		final CPU cpu;
+		final long quota;
+		final Listener lstn;
+		long cycles = 0;
+		Throwable error = null;
+
+		Instance(CPU cpu, long quota, Listener lstn) {
+			this.cpu = cpu;
+			this.quota = quota;
+			this.lstn = lstn;
+		}
+
+		public void run() {
+			try {
+				int q = (int)Math.min(quantum, quota - cycles);
+				int cy = cpu.runFor(q);
+				cycles += cy;
+				if (cycles < quota && cy >= q) {
+					pool.execute(this);
+					return;
+				}
+				if (lstn != null) {
+					lstn.done(cpu, cycles);
+				}
+			} catch (RuntimeException | Error e) {
+				error = e;
+			}
+			remain.countDown();
+		}
+	}
+
+	private final int threads;
+	private final int quantum;
+	private final ArrayList<Instance> fleet = new ArrayList<Instance>();
+	private ForkJoinPool pool;
+	private CountDownLatch remain;
+	private long nanos = 0;
+
+	// 'threads' is the number of threads to use (0 for one per
+	// processor), 'quantum' is the number of T-states each CPU
+	// runs before another gets a turn.
+	public Fleet(int threads, int quantum) {
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		this.threads = threads;
+		this.quantum = quantum;
+	}
+
+	// Add 'cpu', to run for 'quota' T-states. 'lstn' may be null.
+	public void add(CPU cpu, long quota, Listener lstn) {
+		fleet.add(new Instance(cpu, quota, lstn));
+	}
+
+	// Run all CPUs until done. May be called again, e.g. after adding
+	// more CPUs. CPUs that stopped early are then resumed. If a CPU (or
+	// its Listener) throws, that CPU is done, the others run on, and
+	// the (first) exception is then thrown from here.
+	public void run() throws InterruptedException {
+		ArrayList<Instance> todo = new ArrayList<Instance>();
+		for (Instance i : fleet) {
+			if (i.cycles < i.quota) {
+				i.error = null;
+				todo.add(i);
+			}
+		}
+		remain = new CountDownLatch(todo.size());
+		// asyncMode: local queues are FIFO, so CPUs take turns
+		pool = new ForkJoinPool(threads,
+			ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		long t0 = System.nanoTime();
+		try {
+			for (Instance i : todo) {
+				pool.execute(i);
+			}
+			remain.await();
+		} finally {
+			nanos += System.nanoTime() - t0;
+			pool.shutdownNow();
+			pool = null;
+		}
+		for (Instance i : todo) {
+			if (i.error instanceof RuntimeException) {
+				throw (RuntimeException)i.error;
+			}
+			if (i.error instanceof Error) {
+				throw (Error)i.error;
+			}
+		}
+	}
+
+	// Statistics, for all run() so far. Not valid during run().
+
+	public int getCount() { return fleet.size(); }
+
+	// Total T-states run, all CPUs
+	public long getCycles() {
+		long cy = 0;
+		for (Instance i : fleet) {
+			cy += i.cycles;
+		}
+		return cy;
+	}
+
+	// Elapsed (wall clock) time in run()
+	public long getNanos() { return nanos; }
+
+	// Aggregate T-states per second
+	public double getRate() {
+		if (nanos == 0) {
+			return 0;
+		}
+		return getCycles() * 1e9 / nanos;
+	}
+}
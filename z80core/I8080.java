@@ -5,6 +5,9 @@
 //
 package z80core;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import z80core.Z80State.IntMode;
 
@@ -33,10 +36,29 @@ public class I8080 implements CPU {
 	private int regSP;
 	private boolean ffIE = false;
 	private boolean pendingEI = false;
-	private boolean activeINT = false;
+	// INT_LINE follows the INT level. Only changed through INT_LINES,
+	// so any thread may signal interrupts; seen between instructions.
+	private int intLines = 0;
+	private static final int INT_LINE = 0b0001;
+	private static final VarHandle INT_LINES;
+	static {
+		try {
+			INT_LINES = MethodHandles.lookup().findVarHandle(
+				I8080.class, "intLines", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 	private boolean intrFetch = false;
 	private boolean halted = false;
 	private boolean pinReset = false;
+	private CycleListener cycListener = null;
+	private Profiler prof = null;
+	private MemoryHeat heat = null;	// only during runProfiled()
+	private PortStats ports = null;	// only during runProfiled()
+	private PageTable pageTable = null;
+	private volatile boolean stopRun = false;
+	private int runCy = 0;	// T-states so far in runFor()
 	private int memptr;
 	private static final int sz53pn_addTable[] = new int[256];
 
@@ -451,11 +473,23 @@ public class I8080 implements CPU {
 	public final void setINT2Line(boolean intLine) { }
 
 	public final boolean isINTLine() {
-		return activeINT;
+		return (intLines() & INT_LINE) != 0;
 	}
 
 	public final void setINTLine(boolean intLine) {
-		activeINT = intLine;
+		setIntLines(INT_LINE, intLine);
+	}
+
+	private int intLines() {
+		return (int)INT_LINES.getAcquire(this);
+	}
+
+	private void setIntLines(int lines, boolean on) {
+		if (on) {
+			INT_LINES.getAndBitwiseOrRelease(this, lines);
+		} else {
+			INT_LINES.getAndBitwiseAndRelease(this, ~lines);
+		}
 	}
 
 	public final boolean isHalted() {
@@ -478,6 +512,65 @@ public class I8080 implements CPU {
 		pendingEI = state;
 	}
 
+	// Binary snapshot: the complete CPU state, but not the configuration
+	// (Computer, PageTable, listeners, breakpoints). Read/written at the
+	// buffer's position, in the buffer's byte order. Restoring
+	// reproduces the same execution from that point.
+	private static final int SNAP_MAGIC = 0x38303830;	// "8080"
+	private static final int SNAP_VERSION = 1;
+
+	public int stateSize() { return 29; }
+
+	public void saveState(ByteBuffer buf) {
+		buf.putInt(SNAP_MAGIC);
+		buf.putShort((short)SNAP_VERSION);
+		buf.put((byte)regA);
+		buf.put((byte)regB);
+		buf.put((byte)regC);
+		buf.put((byte)regD);
+		buf.put((byte)regE);
+		buf.put((byte)regH);
+		buf.put((byte)regL);
+		buf.put((byte)sz5h3pnFlags);
+		buf.putShort((short)regPC);
+		buf.putShort((short)regSP);
+		buf.putShort((short)memptr);
+		buf.putInt(intLines());
+		buf.putInt(ticks);
+		int f = 0;
+		if (carryFlag) f |= 0x01;
+		if (ffIE) f |= 0x02;
+		if (pendingEI) f |= 0x04;
+		if (halted) f |= 0x08;
+		if (intrFetch) f |= 0x10;
+		buf.put((byte)f);
+	}
+
+	public void loadState(ByteBuffer buf) {
+		if (buf.getInt() != SNAP_MAGIC || buf.getShort() != SNAP_VERSION) {
+			throw new IllegalArgumentException("Not an I8080 snapshot");
+		}
+		regA = buf.get() & 0xff;
+		regB = buf.get() & 0xff;
+		regC = buf.get() & 0xff;
+		regD = buf.get() & 0xff;
+		regE = buf.get() & 0xff;
+		regH = buf.get() & 0xff;
+		regL = buf.get() & 0xff;
+		sz5h3pnFlags = buf.get() & 0xff;
+		regPC = buf.getShort() & 0xffff;
+		regSP = buf.getShort() & 0xffff;
+		memptr = buf.getShort() & 0xffff;
+		INT_LINES.setRelease(this, buf.getInt());
+		ticks = buf.getInt();
+		int f = buf.get();
+		carryFlag = (f & 0x01) != 0;
+		ffIE = (f & 0x02) != 0;
+		pendingEI = (f & 0x04) != 0;
+		halted = (f & 0x08) != 0;
+		intrFetch = (f & 0x10) != 0;
+	}
+
 	// Reset
 	public final void reset() {
 		if (pinReset) {
@@ -500,7 +593,7 @@ public class I8080 implements CPU {
 		regPC = 0;
 		ffIE = false;
 		pendingEI = false;
-		activeINT = false;
+		INT_LINES.setRelease(this, 0);
 		halted = false;
 		intrFetch = false;
 	}
@@ -713,7 +806,10 @@ public class I8080 implements CPU {
 		if (intrFetch) {
 			val = computerImpl.intrResp(IntMode.IM0);
 		} else {
-			val = computerImpl.peek8(regPC);
+			if (heat != null) {
+				++heat.fetch[regPC >> 8];
+			}
+			val = memRead(regPC);
 			regPC = (regPC + 1) & 0xffff;
 		}
 		ticks += 3;
@@ -733,28 +829,42 @@ public class I8080 implements CPU {
 	}
 
 	private int peek8(int address) {
-		int val = computerImpl.peek8(address);
+		if (heat != null) {
+			++heat.read[(address >> 8) & 0xff];
+		}
+		int val = memRead(address);
 		ticks += 3;
 		return val;
 	}
 
 	private int peek16(int address) {
 		// Z80 is little-endian
-		int val = computerImpl.peek8(address);
-		val = (computerImpl.peek8(address + 1) << 8) | val;
+		if (heat != null) {
+			++heat.read[(address >> 8) & 0xff];
+			++heat.read[((address + 1) >> 8) & 0xff];
+		}
+		int val = memRead(address);
+		val = (memRead(address + 1) << 8) | val;
 		ticks += 6;
 		return val;
 	}
 
 	private void poke8(int address, int value) {
-		computerImpl.poke8(address, value);
+		if (heat != null) {
+			++heat.write[(address >> 8) & 0xff];
+		}
+		memWrite(address, value);
 		ticks += 3;
 	}
 
 	private void poke16(int address, int value) {
 		// Z80 is little-endian
-		computerImpl.poke8(address, value & 0xff);
-		computerImpl.poke8(address + 1, (value >> 8) & 0xff);
+		if (heat != null) {
+			++heat.write[(address >> 8) & 0xff];
+			++heat.write[((address + 1) >> 8) & 0xff];
+		}
+		memWrite(address, value & 0xff);
+		memWrite(address + 1, (value >> 8) & 0xff);
 		ticks += 6;
 	}
 
@@ -808,14 +918,15 @@ public class I8080 implements CPU {
 	}
 
 	// Only one type of special cycle in 8080
-	public String specialCycle() { return "INT"; }
+	public String specialCycle() { return SpecialCycle.name(SpecialCycle.INT); }
+	public int specialCycleCode() { return SpecialCycle.INT; }
 
 	public final int execute() {
 		ticks = 0;
 
 		// Ahora se comprueba si al final de la instrucción anterior se
 		// encontró una interrupción enmascarable y, de ser así, se procesa.
-		if (activeINT) {
+		if ((intLines() & INT_LINE) != 0) {
 			if (ffIE && !pendingEI) {
 				interruption();
 				// intrFetch is always true
@@ -846,6 +957,159 @@ public class I8080 implements CPU {
 		return ticks;
 	}
 
+	// Fast-forward through HLT, up to 'budget' cycles, as long as
+	// no interrupt could be taken. Returns 0 if not possible.
+	private int haltSkip(int budget) {
+		if (((intLines() & INT_LINE) != 0 && ffIE) || pendingEI ||
+				breakpointAt[regPC]) {
+			return 0;
+		}
+		int n = (budget + 6) / 7;
+		return n * 7;
+	}
+
+	public void setCycleListener(CycleListener lstn) { cycListener = lstn; }
+	public void setProfiler(Profiler prof) { this.prof = prof; }
+
+	// Access memory directly, instead of through the Computer,
+	// for pages mapped in 'pages'. null to use the Computer only.
+	public void setPageTable(PageTable pages) { pageTable = pages; }
+
+	private int memRead(int address) {
+		if (pageTable != null) {
+			return pageTable.peek8(address);
+		}
+		return computerImpl.peek8(address);
+	}
+
+	private void memWrite(int address, int value) {
+		if (pageTable != null) {
+			pageTable.poke8(address, value);
+		} else {
+			computerImpl.poke8(address, value);
+		}
+	}
+
+	private int inPort(int port) {
+		if (ports == null) {
+			return computerImpl.inPort(port);
+		}
+		long t0 = System.nanoTime();
+		int val = computerImpl.inPort(port);
+		ports.read(port, System.nanoTime() - t0);
+		return val;
+	}
+
+	private void outPort(int port, int value) {
+		if (ports == null) {
+			computerImpl.outPort(port, value);
+			return;
+		}
+		long t0 = System.nanoTime();
+		computerImpl.outPort(port, value);
+		ports.write(port, System.nanoTime() - t0);
+	}
+
+	public void stopRun() { stopRun = true; }
+	public int getRunCycles() { return runCy; }
+
+	// Execute instructions until at least 'tStates' clock cycles have
+	// been consumed, or stopRun() is called (e.g. from breakpoint()).
+	// Returns the number of cycles actually consumed. Special cycles
+	// are reported to the CycleListener, instead of a negative return.
+	public final int runFor(int tStates) {
+		if (prof != null) {
+			return runProfiled(tStates);
+		}
+		int cy = 0;
+		stopRun = false;
+		while (cy < tStates && !stopRun) {
+			runCy = cy;
+			if (halted) {
+				int t = haltSkip(tStates - cy);
+				if (t > 0) {
+					cy += t;
+					continue;
+				}
+			}
+			int t = execute();
+			if (t < 0) {
+				t = -t;
+				if (cycListener != null) {
+					cycListener.specialCycle(this, t);
+				}
+			}
+			cy += t;
+		}
+		runCy = 0;
+		return cy;
+	}
+
+	// runFor() with a Profiler. Separate, so that runFor() itself
+	// pays nothing.
+	private int runProfiled(int tStates) {
+		long[] count = prof.count;
+		long[] cycles = prof.cycles;
+		int mask = prof.mask;
+		CallGraph cg = prof.calls;
+		OpcodeMix mix = prof.mix;
+		heat = prof.heat;
+		ports = prof.ports;
+		int cy = 0;
+		stopRun = false;
+		while (cy < tStates && !stopRun) {
+			runCy = cy;
+			int pc = regPC & mask;
+			if (halted) {
+				int t = haltSkip(tStates - cy);
+				if (t > 0) {
+					cycles[pc] += t;
+					if (cg != null) {
+						cg.tick(t);
+					}
+					cy += t;
+					continue;
+				}
+			}
+			boolean h = halted;
+			int sp = regSP;
+			int mi = -1;
+			boolean timed = false;
+			if (mix != null && !h) {
+				mi = memRead(regPC);
+				timed = mix.sample();
+			}
+			long t0 = timed ? System.nanoTime() : 0;
+			int t = execute();
+			long ns = timed ? System.nanoTime() - t0 : -1;
+			int op = opCode;
+			if (t < 0) {
+				t = -t;
+				op = CallGraph.INTR;
+				if (cycListener != null) {
+					cycListener.specialCycle(this, t);
+				}
+			} else if (!h) {
+				++count[pc];
+				if (mi >= 0) {
+					mix.add(mi, ns);
+				}
+			}
+			if (ports != null) {
+				ports.charge(t);
+			}
+			if (cg != null) {
+				cg.step(t, sp, regSP, op, regPC);
+			}
+			cycles[pc] += t;
+			cy += t;
+		}
+		heat = null;
+		ports = null;
+		runCy = 0;
+		return cy;
+	}
+
 	private void decodeOpcode(int opCode) {
 
 		switch (opCode) {
@@ -1824,7 +2088,7 @@ public class I8080 implements CPU {
 			case 0xD3: {     /* OUT n */
 				int work8 = fetch8();
 				memptr = regA << 8;
-				computerImpl.outPort(memptr | work8, regA);
+				outPort(memptr | work8, regA);
 				ticks += 3;
 				memptr |= ((work8 + 1) & 0xff);
 				break;
@@ -1871,7 +2135,7 @@ public class I8080 implements CPU {
 			}
 			case 0xDB: {     /* IN n */
 				memptr = (regA << 8) | fetch8();
-				regA = computerImpl.inPort(memptr++);
+				regA = inPort(memptr++);
 				ticks += 3;
 				break;
 			}
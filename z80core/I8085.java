@@ -5,6 +5,9 @@
 //
 package z80core;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import z80core.Z80State.IntMode;
 
@@ -44,12 +47,34 @@ public class I8085 implements CPU {
 	private int regSP;
 	private boolean ffIE = false;
 	private boolean pendingEI = false;
-	private boolean activeINT = false;
-	private boolean activeTRAP = false;
-	private boolean trapState = false;
+	// INT and RST5.5/6.5/7.5 (same bits as RIM) follow their inputs,
+	// TRAP_PEND is set on a TRAP edge and stays set until taken.
+	// Only changed through INT_LINES, so any thread may signal
+	// interrupts; they are seen between instructions.
+	private int intLines = 0;
+	private static final int INT_LINE = 0x0001;
+	private static final int RST_LINES = I7_5_MASK | I6_5_MASK | I5_5_MASK;
+	private static final int TRAP_LINE = 0x0100;
+	private static final int TRAP_PEND = 0x0200;
+	private static final VarHandle INT_LINES;
+	static {
+		try {
+			INT_LINES = MethodHandles.lookup().findVarHandle(
+				I8085.class, "intLines", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 	private boolean intrFetch = false;
 	private boolean halted = false;
 	private boolean pinReset = false;
+	private CycleListener cycListener = null;
+	private Profiler prof = null;
+	private MemoryHeat heat = null;	// only during runProfiled()
+	private PortStats ports = null;	// only during runProfiled()
+	private PageTable pageTable = null;
+	private volatile boolean stopRun = false;
+	private int runCy = 0;	// T-states so far in runFor()
 	private int memptr;
 	private static final int sz53pn_addTable[] = new int[256];
 
@@ -488,47 +513,37 @@ public class I8085 implements CPU {
 	public final void setINT2Line(boolean intLine) { }
 
 	public final boolean isINTLine() {
-		return activeINT;
+		return (intLines() & INT_LINE) != 0;
 	}
 
 	public final void setINTLine(boolean intLine) {
-		activeINT = intLine;
+		setIntLines(INT_LINE, intLine);
 	}
 	// These are 8085-only
 	public final boolean isRST5_5Line() {
-		return (regIM & I5_5_MASK) != 0;
+		return (intLines() & I5_5_MASK) != 0;
 	}
 	public final void setRST5_5Line(boolean intLine) {
 		// RST to 0x002c
-		if (intLine) {
-			regIM |= I5_5_MASK;
-		} else {
-			regIM &= ~I5_5_MASK;
-		}
+		setIntLines(I5_5_MASK, intLine);
 	}
 	public final boolean isRST6_5Line() {
-		return (regIM & I6_5_MASK) != 0;
+		return (intLines() & I6_5_MASK) != 0;
 	}
 	public final void setRST6_5Line(boolean intLine) {
 		// RST to 0x0034
-		if (intLine) {
-			regIM |= I6_5_MASK;
-		} else {
-			regIM &= ~I6_5_MASK;
-		}
+		setIntLines(I6_5_MASK, intLine);
 	}
 	public final boolean isRST7_5Line() {
-		return (regIM & I7_5_MASK) != 0;
+		return (intLines() & I7_5_MASK) != 0;
 	}
 	public final void setRST7_5Line(boolean intLine) {
 		// RST to 0x003c
 		// edge-triggered, rising edge.
-		boolean last = (regIM & I7_5_MASK) != 0;
-		if (!last && intLine) {
-			regIM |= I7_5_MASK;
-		} else if (last && !intLine) {
-			regIM &= ~I7_5_MASK;
-		}
+		setIntLines(I7_5_MASK, intLine);
+	}
+	public final boolean isTRAPLine() {
+		return (intLines() & TRAP_LINE) != 0;
 	}
 	public final void setTRAPLine(boolean intLine) {
 		// RST to 0x0024
@@ -538,11 +553,24 @@ public class I8085 implements CPU {
 		// be triggered again. So, the CPU ignores the
 		// level of TRAP once it has been acknowledged.
 		if (intLine) {
-			if (trapState) return; // must have edge
-			activeTRAP = true;
-			trapState = true;
+			int old = (int)INT_LINES.getAndBitwiseOrRelease(this, TRAP_LINE);
+			if ((old & TRAP_LINE) == 0) { // must have edge
+				setIntLines(TRAP_PEND, true);
+			}
 		} else {
-			trapState = false;
+			setIntLines(TRAP_LINE, false);
+		}
+	}
+
+	private int intLines() {
+		return (int)INT_LINES.getAcquire(this);
+	}
+
+	private void setIntLines(int lines, boolean on) {
+		if (on) {
+			INT_LINES.getAndBitwiseOrRelease(this, lines);
+		} else {
+			INT_LINES.getAndBitwiseAndRelease(this, ~lines);
 		}
 	}
 	public final void setSIDLine(boolean sid) {
@@ -591,6 +619,67 @@ public class I8085 implements CPU {
 		pendingEI = state;
 	}
 
+	// Binary snapshot: the complete CPU state, but not the configuration
+	// (Computer, PageTable, listeners, breakpoints). Read/written at the
+	// buffer's position, in the buffer's byte order. Restoring
+	// reproduces the same execution from that point.
+	private static final int SNAP_MAGIC = 0x38303835;	// "8085"
+	private static final int SNAP_VERSION = 1;
+
+	public int stateSize() { return 30; }
+
+	public void saveState(ByteBuffer buf) {
+		buf.putInt(SNAP_MAGIC);
+		buf.putShort((short)SNAP_VERSION);
+		buf.put((byte)regA);
+		buf.put((byte)regB);
+		buf.put((byte)regC);
+		buf.put((byte)regD);
+		buf.put((byte)regE);
+		buf.put((byte)regH);
+		buf.put((byte)regL);
+		buf.put((byte)regIM);
+		buf.put((byte)szkh0pv_Flags);
+		buf.putShort((short)regPC);
+		buf.putShort((short)regSP);
+		buf.putShort((short)memptr);
+		buf.putInt(intLines());
+		buf.putInt(ticks);
+		int f = 0;
+		if (carryFlag) f |= 0x01;
+		if (ffIE) f |= 0x02;
+		if (pendingEI) f |= 0x04;
+		if (halted) f |= 0x08;
+		if (intrFetch) f |= 0x10;
+		buf.put((byte)f);
+	}
+
+	public void loadState(ByteBuffer buf) {
+		if (buf.getInt() != SNAP_MAGIC || buf.getShort() != SNAP_VERSION) {
+			throw new IllegalArgumentException("Not an I8085 snapshot");
+		}
+		regA = buf.get() & 0xff;
+		regB = buf.get() & 0xff;
+		regC = buf.get() & 0xff;
+		regD = buf.get() & 0xff;
+		regE = buf.get() & 0xff;
+		regH = buf.get() & 0xff;
+		regL = buf.get() & 0xff;
+		regIM = buf.get() & 0xff;
+		szkh0pv_Flags = buf.get() & 0xff;
+		regPC = buf.getShort() & 0xffff;
+		regSP = buf.getShort() & 0xffff;
+		memptr = buf.getShort() & 0xffff;
+		INT_LINES.setRelease(this, buf.getInt());
+		ticks = buf.getInt();
+		int f = buf.get();
+		carryFlag = (f & 0x01) != 0;
+		ffIE = (f & 0x02) != 0;
+		pendingEI = (f & 0x04) != 0;
+		halted = (f & 0x08) != 0;
+		intrFetch = (f & 0x10) != 0;
+	}
+
 	// Reset
 	public final void reset() {
 		if (pinReset) {
@@ -605,6 +694,7 @@ public class I8085 implements CPU {
 			regH = 0;
 			regL = 0;
 			regIM = 0;
+			setIntLines(RST_LINES, false);
 
 			regSP = 0;
 
@@ -614,9 +704,7 @@ public class I8085 implements CPU {
 		regPC = 0;
 		ffIE = false;
 		pendingEI = false;
-		activeINT = false;
-		activeTRAP = false;
-		trapState = false;
+		setIntLines(INT_LINE | TRAP_LINE | TRAP_PEND, false);
 		halted = false;
 		intrFetch = false;
 	}
@@ -900,7 +988,10 @@ public class I8085 implements CPU {
 		if (intrFetch) {
 			val = computerImpl.intrResp(IntMode.IM0);
 		} else {
-			val = computerImpl.peek8(regPC);
+			if (heat != null) {
+				++heat.fetch[regPC >> 8];
+			}
+			val = memRead(regPC);
 			regPC = (regPC + 1) & 0xffff;
 		}
 		ticks += 3;
@@ -920,28 +1011,42 @@ public class I8085 implements CPU {
 	}
 
 	private int peek8(int address) {
-		int val = computerImpl.peek8(address);
+		if (heat != null) {
+			++heat.read[(address >> 8) & 0xff];
+		}
+		int val = memRead(address);
 		ticks += 3;
 		return val;
 	}
 
 	private int peek16(int address) {
 		// Z80 is little-endian
-		int val = computerImpl.peek8(address);
-		val = (computerImpl.peek8(address + 1) << 8) | val;
+		if (heat != null) {
+			++heat.read[(address >> 8) & 0xff];
+			++heat.read[((address + 1) >> 8) & 0xff];
+		}
+		int val = memRead(address);
+		val = (memRead(address + 1) << 8) | val;
 		ticks += 6;
 		return val;
 	}
 
 	private void poke8(int address, int value) {
-		computerImpl.poke8(address, value);
+		if (heat != null) {
+			++heat.write[(address >> 8) & 0xff];
+		}
+		memWrite(address, value);
 		ticks += 3;
 	}
 
 	private void poke16(int address, int value) {
 		// Z80 is little-endian
-		computerImpl.poke8(address, value & 0xff);
-		computerImpl.poke8(address + 1, (value >> 8) & 0xff);
+		if (heat != null) {
+			++heat.write[(address >> 8) & 0xff];
+			++heat.write[((address + 1) >> 8) & 0xff];
+		}
+		memWrite(address, value & 0xff);
+		memWrite(address + 1, (value >> 8) & 0xff);
 		ticks += 6;
 	}
 
@@ -1009,22 +1114,24 @@ public class I8085 implements CPU {
 	}
 
 	// Only one type of special cycle in 8080
-	public String specialCycle() { return "INT"; }
+	public String specialCycle() { return SpecialCycle.name(SpecialCycle.INT); }
+	public int specialCycleCode() { return SpecialCycle.INT; }
 
 	public final int execute() {
 		ticks = 0;
 
-		if (activeTRAP) {
-			activeTRAP = false;
+		int lines = intLines();
+		if ((lines & TRAP_PEND) != 0) {
+			setIntLines(TRAP_PEND, false);
 			intr85(0x0024);
 		} else if (ffIE && !pendingEI) {
-			if ((regIM & I7_5_MASK) != 0) {
+			if ((lines & I7_5_MASK) != 0) {
 				intr85(0x003c);
-			} else if ((regIM & I6_5_MASK) != 0) {
+			} else if ((lines & I6_5_MASK) != 0) {
 				intr85(0x0034);
-			} else if ((regIM & I5_5_MASK) != 0) {
+			} else if ((lines & I5_5_MASK) != 0) {
 				intr85(0x002c);
-			} else if (activeINT) {
+			} else if ((lines & INT_LINE) != 0) {
 				interruption();
 				// intrFetch is always true
 			}
@@ -1054,6 +1161,162 @@ public class I8085 implements CPU {
 		return ticks;
 	}
 
+	// Fast-forward through HLT, up to 'budget' cycles, as long as
+	// no interrupt could be taken. Returns 0 if not possible.
+	private int haltSkip(int budget) {
+		int lines = intLines();
+		if ((lines & TRAP_PEND) != 0 || pendingEI || breakpointAt[regPC]) {
+			return 0;
+		}
+		if (ffIE && (lines & (RST_LINES | INT_LINE)) != 0) {
+			return 0;
+		}
+		int n = (budget + 3) / 4;
+		return n * 4;
+	}
+
+	public void setCycleListener(CycleListener lstn) { cycListener = lstn; }
+	public void setProfiler(Profiler prof) { this.prof = prof; }
+
+	// Access memory directly, instead of through the Computer,
+	// for pages mapped in 'pages'. null to use the Computer only.
+	public void setPageTable(PageTable pages) { pageTable = pages; }
+
+	private int memRead(int address) {
+		if (pageTable != null) {
+			return pageTable.peek8(address);
+		}
+		return computerImpl.peek8(address);
+	}
+
+	private void memWrite(int address, int value) {
+		if (pageTable != null) {
+			pageTable.poke8(address, value);
+		} else {
+			computerImpl.poke8(address, value);
+		}
+	}
+
+	private int inPort(int port) {
+		if (ports == null) {
+			return computerImpl.inPort(port);
+		}
+		long t0 = System.nanoTime();
+		int val = computerImpl.inPort(port);
+		ports.read(port, System.nanoTime() - t0);
+		return val;
+	}
+
+	private void outPort(int port, int value) {
+		if (ports == null) {
+			computerImpl.outPort(port, value);
+			return;
+		}
+		long t0 = System.nanoTime();
+		computerImpl.outPort(port, value);
+		ports.write(port, System.nanoTime() - t0);
+	}
+
+	public void stopRun() { stopRun = true; }
+	public int getRunCycles() { return runCy; }
+
+	// Execute instructions until at least 'tStates' clock cycles have
+	// been consumed, or stopRun() is called (e.g. from breakpoint()).
+	// Returns the number of cycles actually consumed. Special cycles
+	// are reported to the CycleListener, instead of a negative return.
+	public final int runFor(int tStates) {
+		if (prof != null) {
+			return runProfiled(tStates);
+		}
+		int cy = 0;
+		stopRun = false;
+		while (cy < tStates && !stopRun) {
+			runCy = cy;
+			if (halted) {
+				int t = haltSkip(tStates - cy);
+				if (t > 0) {
+					cy += t;
+					continue;
+				}
+			}
+			int t = execute();
+			if (t < 0) {
+				t = -t;
+				if (cycListener != null) {
+					cycListener.specialCycle(this, t);
+				}
+			}
+			cy += t;
+		}
+		runCy = 0;
+		return cy;
+	}
+
+	// runFor() with a Profiler. Separate, so that runFor() itself
+	// pays nothing.
+	private int runProfiled(int tStates) {
+		long[] count = prof.count;
+		long[] cycles = prof.cycles;
+		int mask = prof.mask;
+		CallGraph cg = prof.calls;
+		OpcodeMix mix = prof.mix;
+		heat = prof.heat;
+		ports = prof.ports;
+		int cy = 0;
+		stopRun = false;
+		while (cy < tStates && !stopRun) {
+			runCy = cy;
+			int pc = regPC & mask;
+			if (halted) {
+				int t = haltSkip(tStates - cy);
+				if (t > 0) {
+					cycles[pc] += t;
+					if (cg != null) {
+						cg.tick(t);
+					}
+					cy += t;
+					continue;
+				}
+			}
+			boolean h = halted;
+			int sp = regSP;
+			int mi = -1;
+			boolean timed = false;
+			if (mix != null && !h) {
+				mi = memRead(regPC);
+				timed = mix.sample();
+			}
+			long t0 = timed ? System.nanoTime() : 0;
+			int t = execute();
+			long ns = timed ? System.nanoTime() - t0 : -1;
+			int op = opCode;
+			if (t < 0) {
+				t = -t;
+				op = CallGraph.INTR;
+				if (cycListener != null) {
+					cycListener.specialCycle(this, t);
+				}
+			} else if (!h) {
+				++count[pc];
+				if (mi >= 0) {
+					mix.add(mi, ns);
+				}
+			}
+			if (ports != null) {
+				ports.charge(t);
+			}
+			if (cg != null) {
+				cg.step(t, sp, regSP, op, regPC);
+			}
+			cycles[pc] += t;
+			cy += t;
+		}
+		heat = null;
+		ports = null;
+		runCy = 0;
+		return cy;
+	}
+
 	private void decodeOpcode(int opCode) {
 		int tmp;
 
@@ -1226,7 +1489,7 @@ public class I8085 implements CPU {
 			}
 			case 0x20: {	/* RIM */
 				getSID(); // update SID_MASK from device
-				regA = regIM;
+				regA = regIM | (intLines() & RST_LINES);
 				break;
 			}
 			case 0x21: {     /* LXI H,nn */
@@ -2022,7 +2285,7 @@ public class I8085 implements CPU {
 			case 0xD3: {     /* OUT n */
 				int work8 = fetch8();
 				memptr = regA << 8;
-				computerImpl.outPort(memptr | work8, regA);
+				outPort(memptr | work8, regA);
 				ticks += 4;
 				memptr |= ((work8 + 1) & 0xff);
 				break;
@@ -2077,7 +2340,7 @@ public class I8085 implements CPU {
 			}
 			case 0xDB: {     /* IN n */
 				memptr = (regA << 8) | fetch8();
-				regA = computerImpl.inPort(memptr++);
+				regA = inPort(memptr++);
 				ticks += 4;
 				break;
 			}
@@ -2318,7 +2581,7 @@ public class I8085 implements CPU {
 		String s = new String();
 		s += String.format("INT=%s IE=%s TRAP=%s\n" +
 				"I5.5=%s I6.5=%s I7.5=%s\n",
-				isINTLine(), isIE(), activeTRAP,
+				isINTLine(), isIE(), (intLines() & TRAP_PEND) != 0,
 				isRST5_5Line(), isRST6_5Line(), isRST7_5Line());
 		s += String.format("PC=%04x SP=%04x\n",
 				getRegPC(), getRegSP());
@@ -2332,7 +2595,7 @@ public class I8085 implements CPU {
 			(szkh0pv_Flags & PARITY_MASK) == 0 ? "p" : "P",
 			(szkh0pv_Flags & V_MASK) == 0 ? "v" : "V",
 			carryFlag ? "c" : "C",
-			regIM);
+			regIM | (intLines() & RST_LINES));
 		return s;
 	}
 }
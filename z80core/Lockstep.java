@@ -0,0 +1,196 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+// Runs several CPUs that share memory, each on its own thread, in rounds
+// of a fixed number of T-states (per CPU, so CPUs with different clocks
+// can be given different quanta). Results are deterministic: during a
+// round each CPU sees shared memory as it was at the start of the round,
+// plus its own writes. At the end of the round, all threads wait while
+// the writes are applied in the order the CPUs were added (so, for the
+// same address, the last CPU wins), and then the edge action (if any)
+// runs, e.g. to pass mailbox/port state between the CPUs.
+//
+// Each CPU's Computer must access shared memory through its View, and
+// must not map shared memory in a PageTable. Anything else a Computer
+// shares with another CPU must only be exchanged in the edge action.
+public class Lockstep {
+	// One CPU's access to the shared memory
+	public class View {
+		private final byte[] over;	// this CPU's writes, this round
+		private final int[] stamp;	// == gen if 'over' is valid
+		private int gen = 1;
+		private int[] log = new int[256];	// addresses written
+		private int nlog = 0;
+
+		private View() {
+			over = new byte[mem.length];
+			stamp = new int[mem.length];
+		}
+
+		public int read(int address) {
+			if (stamp[address] == gen) {
+				return over[address] & 0xff;
+			}
+			return mem[address] & 0xff;
+		}
+
+		public void write(int address, int value) {
+			if (stamp[address] != gen) {
+				stamp[address] = gen;
+				if (nlog >= log.length) {
+					log = Arrays.copyOf(log, log.length * 2);
+				}
+				log[nlog++] = address;
+			}
+			over[address] = (byte)value;
+		}
+
+		private void commit() {
+			for (int x = 0; x < nlog; ++x) {
+				int a = log[x];
+				mem[a] = over[a];
+			}
+			nlog = 0;
+			if (++gen == 0) {
+				Arrays.fill(stamp, 0);
+				gen = 1;
+			}
+		}
+	}
+
+	private class Member implements Runnable {
+		final CPU cpu;
+		final View view;
+		final int quantum;
+		long cycles = 0;
+		int owe = 0;	// overshoot of the previous round
+		boolean stopped = false;
+		Throwable error = null;
+
+		Member(CPU cpu, View view, int quantum) {
+			this.cpu = cpu;
+			this.view = view;
+			this.quantum = quantum;
+		}
+
+		public void run() {
+			try {
+				while (!done) {
+					int q = quantum - owe;
+					int cy = 0;
+					if (q > 0) {
+						cy = cpu.runFor(q);
+						stopped = cy < q;
+					}
+					cycles += cy;
+					owe = cy - q;
+					if (owe < 0) {
+						owe = 0;
+					}
+					barrier.await();
+				}
+			} catch (InterruptedException | BrokenBarrierException e) {
+				// another member failed, or interrupted
+			} catch (RuntimeException | Error e) {
+				error = e;
+				barrier.reset();
+			}
+		}
+	}
+
+	private final byte[] mem;
+	private final ArrayList<Member> members = new ArrayList<Member>();
+	private Runnable edge = null;
+	private CyclicBarrier barrier;
+	private volatile boolean done;
+	private long rounds = 0;
+	private long limit = 0;
+
+	// 'mem' is the shared memory, indexed by the address
+	// the Computers pass to View.read()/View.write().
+	public Lockstep(byte[] mem) {
+		this.mem = mem;
+	}
+
+	public View newView() {
+		return new View();
+	}
+
+	// Add 'cpu', whose Computer uses 'view', to run 'quantum'
+	// T-states per round. Order of adding decides write order.
+	public void add(CPU cpu, View view, int quantum) {
+		members.add(new Member(cpu, view, quantum));
+	}
+
+	// Run at the end of every round, with all CPUs stopped.
+	public void setEdgeAction(Runnable edge) {
+		this.edge = edge;
+	}
+
+	// Run 'n' rounds, or until a CPU stops (CPU.stopRun()), in which
+	// case the other CPUs still complete the round. Returns the number
+	// of rounds run.
+	public long run(long n) throws InterruptedException {
+		if (n <= 0 || members.isEmpty()) {
+			return 0;
+		}
+		long start = rounds;
+		limit = rounds + n;
+		done = false;
+		barrier = new CyclicBarrier(members.size(), () -> endRound());
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (Member m : members) {
+			m.stopped = false;
+			m.error = null;
+			Thread t = new Thread(m);
+			threads.add(t);
+			t.start();
+		}
+		try {
+			for (Thread t : threads) {
+				t.join();
+			}
+		} finally {
+			for (Thread t : threads) {
+				t.interrupt();
+			}
+		}
+		for (Member m : members) {
+			if (m.error instanceof RuntimeException) {
+				throw (RuntimeException)m.error;
+			}
+			if (m.error instanceof Error) {
+				throw (Error)m.error;
+			}
+		}
+		return rounds - start;
+	}
+
+	private void endRound() {
+		boolean stop = false;
+		for (Member m : members) {
+			m.view.commit();
+			stop |= m.stopped;
+		}
+		if (edge != null) {
+			edge.run();
+		}
+		++rounds;
+		if (stop || rounds >= limit) {
+			done = true;
+		}
+	}
+
+	public long getRounds() { return rounds; }
+
+	// T-states run by the n'th CPU added, not valid during run()
+	public long getCycles(int n) {
+		return members.get(n).cycles;
+	}
+}
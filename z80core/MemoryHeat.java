@@ -0,0 +1,97 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+// Memory access counts per 256-byte page: instruction fetches, data
+// reads and data writes. Set on a Profiler with setHeatMap(), and
+// filled in by CPU.runFor() along with it. Pages are of the 64K address
+// space, except for the Z180 where they are of 1M physical memory.
+// Interrupt response bytes are not memory, and are not counted, nor
+// are Z180 DMA transfers.
+public class MemoryHeat {
+	final long[] fetch;
+	final long[] read;
+	final long[] write;
+
+	// 'bits' of address, 16 or 20 (Z180)
+	public MemoryHeat(int bits) {
+		fetch = new long[1 << (bits - 8)];
+		read = new long[1 << (bits - 8)];
+		write = new long[1 << (bits - 8)];
+	}
+
+	public MemoryHeat(CPU cpu) {
+		this(cpu instanceof Z180 ? 20 : 16);
+	}
+
+	public int pages() { return fetch.length; }
+	public long getFetches(int page) { return fetch[page]; }
+	public long getReads(int page) { return read[page]; }
+	public long getWrites(int page) { return write[page]; }
+
+	public void clear() {
+		Arrays.fill(fetch, 0);
+		Arrays.fill(read, 0);
+		Arrays.fill(write, 0);
+	}
+
+	// One line per page that was accessed, with a header line
+	public void writeCSV(PrintStream out) {
+		out.println("page,address,fetch,read,write");
+		for (int pg = 0; pg < fetch.length; ++pg) {
+			if (fetch[pg] == 0 && read[pg] == 0 && write[pg] == 0) {
+				continue;
+			}
+			out.format("%d,%s,%d,%d,%d\n", pg,
+				String.format(fetch.length > 256 ? "%05x" : "%04x", pg << 8),
+				fetch[pg], read[pg], write[pg]);
+		}
+	}
+
+	// PNG image, pages left to right then top to bottom, 'cell' pixels
+	// square each. Blue is fetches, green reads, red writes, each on a
+	// log scale relative to the busiest page.
+	public void writeImage(File file, int cell) throws IOException {
+		int cols = fetch.length > 256 ? 64 : 16;
+		int rows = fetch.length / cols;
+		double lf = scale(fetch);
+		double lr = scale(read);
+		double lw = scale(write);
+		BufferedImage img = new BufferedImage(cols * cell, rows * cell,
+			BufferedImage.TYPE_INT_RGB);
+		for (int pg = 0; pg < fetch.length; ++pg) {
+			int rgb = (level(write[pg], lw) << 16) |
+				(level(read[pg], lr) << 8) | level(fetch[pg], lf);
+			int x0 = (pg % cols) * cell;
+			int y0 = (pg / cols) * cell;
+			for (int y = 0; y < cell; ++y) {
+				for (int x = 0; x < cell; ++x) {
+					img.setRGB(x0 + x, y0 + y, rgb);
+				}
+			}
+		}
+		ImageIO.write(img, "png", file);
+	}
+
+	private static double scale(long[] ctr) {
+		long max = 0;
+		for (long c : ctr) {
+			max = Math.max(max, c);
+		}
+		return Math.log1p(max);
+	}
+
+	private static int level(long c, double scale) {
+		if (c == 0 || scale == 0) {
+			return 0;
+		}
+		return (int)(Math.log1p(c) * 255 / scale);
+	}
+}
@@ -0,0 +1,126 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+// Opcode histogram, with sampled host time. Set on a Profiler with
+// setOpcodeMix(), and filled in by CPU.runFor() along with it.
+//
+// Opcodes are counted separately by prefix: base, CB, ED, DD, FD, and
+// for DD CB d op and FD CB d op, the final op byte. The 8080/8085 only
+// have base opcodes. Every 'rate' instructions, System.nanoTime() is
+// read before and after execute(), to get the mean host time of each
+// opcode (including the cost of nanoTime() itself, which varies by
+// host, see getOverhead()). Interrupt acknowledge, DMA, and HALT
+// cycles are not counted.
+public class OpcodeMix {
+	public static final int BASE = 0;
+	public static final int CB = 1;
+	public static final int ED = 2;
+	public static final int DD = 3;
+	public static final int FD = 4;
+	public static final int DDCB = 5;
+	public static final int FDCB = 6;
+	private static final String[] names = new String[] {
+		"", "CB ", "ED ", "DD ", "FD ", "DDCB ", "FDCB " };
+
+	private final long[] count = new long[7 * 256];
+	private final long[] nanos = new long[7 * 256];
+	private final long[] samples = new long[7 * 256];
+	private final int rate;
+	private int next;
+
+	// Sample host time every 'rate' instructions, 0 for never
+	public OpcodeMix(int rate) {
+		this.rate = rate;
+		next = rate;
+	}
+
+	// true if the next instruction is to be timed
+	boolean sample() {
+		if (rate <= 0 || --next > 0) {
+			return false;
+		}
+		next = rate;
+		return true;
+	}
+
+	// Count opcode 'x' (prefix * 256 + op), 'ns' is host time or -1
+	void add(int x, long ns) {
+		++count[x];
+		if (ns >= 0) {
+			nanos[x] += ns;
+			++samples[x];
+		}
+	}
+
+	public void clear() {
+		Arrays.fill(count, 0);
+		Arrays.fill(nanos, 0);
+		Arrays.fill(samples, 0);
+		next = rate;
+	}
+
+	public long getCount(int prefix, int op) {
+		return count[prefix * 256 + (op & 0xff)];
+	}
+
+	public long getSamples(int prefix, int op) {
+		return samples[prefix * 256 + (op & 0xff)];
+	}
+
+	// Mean host nanoseconds, 0 if not sampled
+	public double getMeanNanos(int prefix, int op) {
+		return mean(prefix * 256 + (op & 0xff));
+	}
+
+	// Approximate cost of a System.nanoTime() pair, in nanoseconds
+	public static double getOverhead() {
+		long best = Long.MAX_VALUE;
+		for (int n = 0; n < 1000; ++n) {
+			long t0 = System.nanoTime();
+			long t1 = System.nanoTime();
+			best = Math.min(best, t1 - t0);
+		}
+		return best;
+	}
+
+	// Opcodes executed, most first, with share of instructions,
+	// mean host time, and estimated share of host time (count * mean).
+	public void report(PrintStream out) {
+		long tot = 0;
+		double host = 0;
+		int n = 0;
+		int[] ops = new int[count.length];
+		for (int x = 0; x < count.length; ++x) {
+			if (count[x] == 0) {
+				continue;
+			}
+			tot += count[x];
+			host += count[x] * mean(x);
+			ops[n++] = x;
+		}
+		// sort by count, descending
+		long[] keys = new long[n];
+		for (int x = 0; x < n; ++x) {
+			keys[x] = (count[ops[x]] << 11) | ops[x];
+		}
+		Arrays.sort(keys);
+		out.format("%d instructions, %d opcodes\n", tot, n);
+		out.format("%-8s %14s %7s %9s %7s\n",
+			"opcode", "count", "%", "mean ns", "host%");
+		for (int y = n - 1; y >= 0; --y) {
+			int x = (int)(keys[y] & 0x7ff);
+			out.format("%-8s %14d %7.2f %9.1f %7.2f\n",
+				String.format("%s%02X", names[x >> 8], x & 0xff),
+				count[x], count[x] * 100.0 / tot, mean(x),
+				host == 0 ? 0 : count[x] * mean(x) * 100.0 / host);
+		}
+	}
+
+	private double mean(int x) {
+		return samples[x] == 0 ? 0 : (double)nanos[x] / samples[x];
+	}
+}
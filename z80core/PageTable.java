@@ -0,0 +1,104 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.util.Arrays;
+
+// Direct memory access for the CPU cores, bypassing Computer.peek8()
+// and Computer.poke8() for ordinary memory. The address space (physical,
+// for the Z180) is divided into pages of 256 bytes or larger, and each
+// page may be mapped onto part of a byte[] for reading and/or writing.
+// Pages not mapped (memory-mapped I/O, memory the Computer wants to
+// watch, or nothing at all) still go to the Computer. A ROM page is
+// mapped for reading only, so writes to it go to the Computer (which
+// will typically ignore them).
+//
+// A Z80 using setCompile() or setPredecode() must be told, using
+// flushCode(), when the mapping of pages changes.
+public final class PageTable {
+	private final Computer computer;
+	private final int shift;
+	private final int amask;
+	// Per-page store, null if the Computer is to be called.
+	// Offsets have the page base address subtracted already.
+	private final byte[][] rd;
+	private final int[] rdOff;
+	private final byte[][] wr;
+	private final int[] wrOff;
+
+	// 'addrBits' is 16 for the 8080/8085/Z80, 20 for the Z180.
+	// 'pageBits' is the page size, e.g. 8 (256 bytes) or 12 (4K).
+	public PageTable(Computer computer, int addrBits, int pageBits) {
+		this.computer = computer;
+		shift = pageBits;
+		amask = (1 << addrBits) - 1;
+		int n = 1 << (addrBits - pageBits);
+		rd = new byte[n][];
+		rdOff = new int[n];
+		wr = new byte[n][];
+		wrOff = new int[n];
+	}
+
+	public int pageSize() { return 1 << shift; }
+	public int numPages() { return rd.length; }
+
+	// Map 'page' as RAM, at 'offset' in 'mem'
+	public void map(int page, byte[] mem, int offset) {
+		mapROM(page, mem, offset);
+		wr[page] = mem;
+		wrOff[page] = offset - (page << shift);
+	}
+
+	// Map 'page' as ROM, at 'offset' in 'mem'
+	public void mapROM(int page, byte[] mem, int offset) {
+		rd[page] = mem;
+		rdOff[page] = offset - (page << shift);
+		wr[page] = null;
+	}
+
+	// Send all accesses to 'page' to the Computer
+	public void unmap(int page) {
+		rd[page] = null;
+		wr[page] = null;
+	}
+
+	public void unmapAll() {
+		Arrays.fill(rd, null);
+		Arrays.fill(wr, null);
+	}
+
+	public boolean isMapped(int page) { return rd[page] != null; }
+	public boolean isROM(int page) { return rd[page] != null && wr[page] == null; }
+
+	public int peek8(int address) {
+		address &= amask;
+		int pg = address >>> shift;
+		byte[] mem = rd[pg];
+		if (mem == null) {
+			return computer.peek8(address);
+		}
+		return mem[rdOff[pg] + address] & 0xff;
+	}
+
+	// Memory at 'address' if mapped, else -1 (without calling the Computer)
+	int peekMapped(int address) {
+		address &= amask;
+		int pg = address >>> shift;
+		byte[] mem = rd[pg];
+		if (mem == null) {
+			return -1;
+		}
+		return mem[rdOff[pg] + address] & 0xff;
+	}
+
+	public void poke8(int address, int value) {
+		address &= amask;
+		int pg = address >>> shift;
+		byte[] mem = wr[pg];
+		if (mem == null) {
+			computer.poke8(address, value);
+			return;
+		}
+		mem[wrOff[pg] + address] = (byte)value;
+	}
+}
@@ -0,0 +1,162 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+// Port I/O statistics: reads, writes, T-states of the instructions (or
+// DMA cycles) doing the I/O, and host time spent in the device callbacks
+// (Computer.inPort()/outPort(), Z180 ComputerIO and BlockIO), with a
+// histogram of callback times in powers of 2 nanoseconds. Z180 internal
+// registers are counted, but take no host time. Set on a Profiler with
+// setPortStats(), and filled in by CPU.runFor() along with it.
+//
+// Ports are 8-bit (low byte of the address) unless 'wide', then 16-bit.
+public class PortStats {
+	public static final int BUCKETS = 32;	// bucket n: < 2^n ns
+
+	private final int mask;
+	private final long[] reads;
+	private final long[] writes;
+	private final long[] cycles;
+	private final long[] calls;	// timed callbacks
+	private final long[] nanos;
+	private final long[] max;
+	private final long[] hist;
+	private int last = -1;	// port used by the current instruction
+
+	public PortStats(boolean wide) {
+		int n = wide ? 65536 : 256;
+		mask = n - 1;
+		reads = new long[n];
+		writes = new long[n];
+		cycles = new long[n];
+		calls = new long[n];
+		nanos = new long[n];
+		max = new long[n];
+		hist = new long[n * BUCKETS];
+	}
+
+	// Input from 'port', 'ns' in the callback or -1 if none
+	void read(int port, long ns) {
+		port &= mask;
+		++reads[port];
+		last = port;
+		time(port, ns);
+	}
+
+	// Output to 'port', as read()
+	void write(int port, long ns) {
+		port &= mask;
+		++writes[port];
+		last = port;
+		time(port, ns);
+	}
+
+	// 'n' bytes at once, by BlockIO
+	void transfer(int port, int n, boolean in, long ns) {
+		port &= mask;
+		if (in) {
+			reads[port] += n;
+		} else {
+			writes[port] += n;
+		}
+		last = port;
+		time(port, ns);
+	}
+
+	// Charge 't' T-states to the port used since the last call, if any
+	void charge(int t) {
+		if (last >= 0) {
+			cycles[last] += t;
+			last = -1;
+		}
+	}
+
+	private void time(int port, long ns) {
+		if (ns < 0) {
+			return;
+		}
+		++calls[port];
+		nanos[port] += ns;
+		if (ns > max[port]) {
+			max[port] = ns;
+		}
+		int b = 64 - Long.numberOfLeadingZeros(ns);
+		++hist[port * BUCKETS + Math.min(b, BUCKETS - 1)];
+	}
+
+	public void clear() {
+		Arrays.fill(reads, 0);
+		Arrays.fill(writes, 0);
+		Arrays.fill(cycles, 0);
+		Arrays.fill(calls, 0);
+		Arrays.fill(nanos, 0);
+		Arrays.fill(max, 0);
+		Arrays.fill(hist, 0);
+		last = -1;
+	}
+
+	public int ports() { return reads.length; }
+	public long getReads(int port) { return reads[port & mask]; }
+	public long getWrites(int port) { return writes[port & mask]; }
+	public long getCycles(int port) { return cycles[port & mask]; }
+	public long getNanos(int port) { return nanos[port & mask]; }
+	public long getMaxNanos(int port) { return max[port & mask]; }
+
+	// Callback count per bucket, bucket n is [2^(n-1), 2^n) ns
+	public long[] getHistogram(int port) {
+		int x = (port & mask) * BUCKETS;
+		return Arrays.copyOfRange(hist, x, x + BUCKETS);
+	}
+
+	// Upper bound of the bucket holding the 'p' fraction of callbacks
+	private long percentile(int port, double p) {
+		long want = (long)Math.ceil(calls[port] * p);
+		long n = 0;
+		for (int b = 0; b < BUCKETS; ++b) {
+			n += hist[port * BUCKETS + b];
+			if (n >= want) {
+				return 1L << b;
+			}
+		}
+		return max[port];
+	}
+
+	// Ports used, most host time first. May be called while the CPU
+	// is running (e.g. from another thread), figures are then approximate.
+	public void dump(PrintStream out) {
+		int n = 0;
+		long[] keys = new long[reads.length];
+		for (int p = 0; p < reads.length; ++p) {
+			if (reads[p] != 0 || writes[p] != 0) {
+				// host time, then port
+				keys[n++] = (Math.min(nanos[p], Long.MAX_VALUE >> 16) << 16) | p;
+			}
+		}
+		Arrays.sort(keys, 0, n);
+		out.format("%-5s %12s %12s %14s %10s %10s %10s %10s\n",
+			"port", "reads", "writes", "T-states", "host ms",
+			"mean ns", "p99 ns", "max ns");
+		for (int x = n - 1; x >= 0; --x) {
+			int p = (int)(keys[x] & 0xffff);
+			out.format("%-5s %12d %12d %14d %10.3f %10.1f %10s %10d\n",
+				String.format(mask > 0xff ? "%04x" : "%02x", p),
+				reads[p], writes[p], cycles[p], nanos[p] / 1e6,
+				calls[p] == 0 ? 0.0 : (double)nanos[p] / calls[p],
+				calls[p] == 0 ? "-" : "<" + percentile(p, 0.99),
+				max[p]);
+		}
+	}
+
+	// dump() to 'out' every 'period' T-states of 'sch'
+	public void dumpEvery(Scheduler sch, long period, PrintStream out) {
+		sch.after(new Scheduler.Event() {
+			public void fire(long when) {
+				dump(out);
+				sch.schedule(this, when + period);
+			}
+		}, period);
+	}
+}
@@ -0,0 +1,133 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.util.Arrays;
+
+// Per-PC execution counts and T-states, filled in by CPU.runFor() while
+// set with CPU.setProfiler(). PCs are 16-bit, except for the Z180 where
+// they are 20-bit physical addresses. T-states of special cycles
+// (interrupt acknowledge, DMA, etc.) and of HALT are charged to the PC
+// at the time, but do not count as instructions. Each repeat of a block
+// instruction (LDIR etc.) counts as one instruction. Counts accumulate
+// until clear(). Not thread-safe, read only while the CPU is not running.
+// A CallGraph, an OpcodeMix, a MemoryHeat and PortStats may also be
+// kept, see setCallGraph(), setOpcodeMix(), setHeatMap() and
+// setPortStats().
+public class Profiler {
+	final long[] count;
+	final long[] cycles;
+	final int mask;
+	CallGraph calls = null;
+	OpcodeMix mix = null;
+	MemoryHeat heat = null;
+	PortStats ports = null;
+
+	// 'bits' of PC, 16 or 20 (Z180)
+	public Profiler(int bits) {
+		count = new long[1 << bits];
+		cycles = new long[1 << bits];
+		mask = (1 << bits) - 1;
+	}
+
+	// Sized for 'cpu'
+	public Profiler(CPU cpu) {
+		this(cpu instanceof Z180 ? 20 : 16);
+	}
+
+	public int size() { return count.length; }
+
+	// Also keep 'cg' (or null), while profiling
+	public void setCallGraph(CallGraph cg) { calls = cg; }
+	public CallGraph getCallGraph() { return calls; }
+	public void setOpcodeMix(OpcodeMix mix) { this.mix = mix; }
+	public OpcodeMix getOpcodeMix() { return mix; }
+	public void setHeatMap(MemoryHeat heat) { this.heat = heat; }
+	public MemoryHeat getHeatMap() { return heat; }
+	public void setPortStats(PortStats ports) { this.ports = ports; }
+	public PortStats getPortStats() { return ports; }
+
+	public long getCount(int pc) { return count[pc & mask]; }
+	public long getCycles(int pc) { return cycles[pc & mask]; }
+
+	public long getTotalCount() {
+		long n = 0;
+		for (long c : count) {
+			n += c;
+		}
+		return n;
+	}
+
+	public long getTotalCycles() {
+		long n = 0;
+		for (long c : cycles) {
+			n += c;
+		}
+		return n;
+	}
+
+	public void clear() {
+		Arrays.fill(count, 0);
+		Arrays.fill(cycles, 0);
+	}
+
+	// Up to 'n' PCs with the most T-states, most first
+	public int[] hotSpots(int n) {
+		// min-heap on cycles, of the 'n' best so far
+		int[] heap = new int[n];
+		int num = 0;
+		for (int pc = 0; pc < cycles.length; ++pc) {
+			long c = cycles[pc];
+			if (c == 0) {
+				continue;
+			}
+			if (num < n) {
+				heap[num] = pc;
+				siftUp(heap, num++);
+			} else if (n > 0 && c > cycles[heap[0]]) {
+				heap[0] = pc;
+				siftDown(heap, 0, num);
+			}
+		}
+		int[] ret = new int[num];
+		while (num > 0) {
+			ret[--num] = heap[0];
+			heap[0] = heap[num];
+			siftDown(heap, 0, num);
+		}
+		return ret;
+	}
+
+	private boolean less(int a, int b) {
+		// ties: lower address is "more"
+		return cycles[a] < cycles[b] || (cycles[a] == cycles[b] && a > b);
+	}
+
+	private void siftUp(int[] heap, int x) {
+		while (x > 0) {
+			int p = (x - 1) / 2;
+			if (!less(heap[x], heap[p])) {
+				break;
+			}
+			int t = heap[x]; heap[x] = heap[p]; heap[p] = t;
+			x = p;
+		}
+	}
+
+	private void siftDown(int[] heap, int x, int num) {
+		for (;;) {
+			int c = 2 * x + 1;
+			if (c >= num) {
+				break;
+			}
+			if (c + 1 < num && less(heap[c + 1], heap[c])) {
+				++c;
+			}
+			if (!less(heap[c], heap[x])) {
+				break;
+			}
+			int t = heap[x]; heap[x] = heap[c]; heap[c] = t;
+			x = c;
+		}
+	}
+}
@@ -0,0 +1,461 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import z80core.Z80State.IntMode;
+
+// Deterministic record and replay. A run is determined by the starting
+// state, memory, and the inputs: Computer.inPort() and intrResp(),
+// ComputerIO.inPort() (Z180 ASCI, 8085 SID), and the interrupt and DMA
+// request inputs (INT, NMI, INT1/INT2, 8085 RST5.5/6.5/7.5 and TRAP,
+// Z180 DREQ0/1 and internal interrupt sources).
+// While recording, the Recorder sits between the CPU and the real
+// Computer (and ComputerIOs, see io()) and writes those inputs to a
+// compact binary stream. While replaying, the inputs are read back
+// instead, outputs are dropped, and the Computer need only provide
+// memory, so no devices (or their threads) are needed.
+//
+// For interrupt timing to be reproducible, devices must not change the
+// CPU interrupt or DMA request inputs directly while recording, but use
+// the methods here (setINTLine(), raiseIntnlIntr(), setDREQ0Line(),
+// etc.). Changes take effect at
+// the first instruction boundary at or after the next multiple of
+// 'quantum' T-states, and are recorded with that time. Inputs are
+// recorded with the exact time of the instruction (or interrupt, DMA
+// cycle) doing the input, which replay checks.
+//
+// The stream starts with the CPU state (saveState()), but not memory,
+// which must be the same at the start of replay. The CPU must be run
+// using run() here, and the Z80 compiled mode (setCompile()) must not
+// be used. Recording needs close() to end the stream.
+public class Recorder implements Computer {
+	private static final int MAGIC = 0x5a383052;	// "Z80R"
+	private static final int VERSION = 2;
+
+	// record tags, each followed by the time (delta, varint)
+	private static final int T_END = 0;
+	private static final int T_IN = 1;	// port (varint), value
+	private static final int T_RESP = 2;	// value
+	private static final int T_IO = 3;	// device, port, value
+	private static final int T_LINE = 4;	// line, see below
+
+	// line byte: bit 7 is state, rest is which
+	private static final int L_INT = 0;
+	private static final int L_NMI = 1;
+	private static final int L_INT1 = 2;
+	private static final int L_INT2 = 3;
+	private static final int L_RST5_5 = 4;	// 8085
+	private static final int L_RST6_5 = 5;
+	private static final int L_RST7_5 = 6;
+	private static final int L_TRAP = 7;
+	private static final int L_DREQ0 = 8;	// Z180
+	private static final int L_DREQ1 = 9;
+	private static final int L_INTNL = 0x10;	// + source, Z180
+
+	// A ComputerIO as seen by the CPU
+	private class IO implements ComputerIO {
+		private final ComputerIO dev;
+		private final int id;
+
+		private IO(ComputerIO dev, int id) {
+			this.dev = dev;
+			this.id = id;
+		}
+
+		public void setCPU(CPU cpu) {
+			if (dev != null) {
+				dev.setCPU(cpu);
+			}
+		}
+
+		public int inPort(int port) {
+			if (in != null) {
+				expect(T_IO);
+				if (readByte() != id || readByte() != (port & 0xff)) {
+					diverged();
+				}
+				int v = readByte();
+				nextRecord();
+				return v;
+			}
+			int v = dev.inPort(port) & 0xff;
+			record(T_IO, clock());
+			writeByte(id);
+			writeByte(port);
+			writeByte(v);
+			return v;
+		}
+
+		public void outPort(int port, int value) {
+			if (in == null) {
+				dev.outPort(port, value);
+			}
+		}
+	}
+
+	private final Computer comp;
+	private DataOutputStream out;
+	private DataInputStream in;
+	private CPU cpu;
+	private int quantum;
+	private int ndevs = 0;
+	private long now = 0;
+	private long stamp = 0;	// of last record written/read
+	private boolean stop = false;
+	private boolean ended = false;
+	// replay: the record read ahead
+	private int nextTag;
+	private long nextStamp;
+	// record: interrupt input changes, not yet applied
+	private int[] lines = new int[16];
+	private int nlines = 0;
+
+	// Record, to 'out', with interrupt timing to 'quantum' T-states
+	public Recorder(Computer comp, OutputStream out, int quantum) {
+		this.comp = comp;
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.quantum = quantum;
+	}
+
+	// Replay from 'in'. 'comp' is only used for memory access
+	// and notifications (changeSpeed(), breakpoint(), etc.).
+	public Recorder(Computer comp, InputStream in) {
+		this.comp = comp;
+		this.in = new DataInputStream(new BufferedInputStream(in));
+	}
+
+	// The ComputerIO to give to the CPU in place of 'dev', which may
+	// be null for replay. Must be called in the same order for replay.
+	public ComputerIO io(ComputerIO dev) {
+		return new IO(dev, ndevs++);
+	}
+
+	// Start, with 'cpu' (whose Computer is this Recorder) in its
+	// starting state for recording, or loaded from the stream for replay.
+	public void attach(CPU cpu) throws IOException {
+		this.cpu = cpu;
+		now = stamp = 0;
+		if (in == null) {
+			byte[] st = new byte[cpu.stateSize()];
+			cpu.saveState(ByteBuffer.wrap(st));
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			writeVarint(quantum);
+			writeVarint(st.length);
+			out.write(st);
+			return;
+		}
+		if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+			throw new IllegalArgumentException("Not a Z80 recording");
+		}
+		quantum = (int)readVarint();
+		byte[] st = new byte[(int)readVarint()];
+		in.readFully(st);
+		cpu.loadState(ByteBuffer.wrap(st));
+		nextRecord();
+		checkEnd();
+	}
+
+	public boolean isReplaying() { return in != null; }
+	// Replay reached the end of the recording
+	public boolean isEnded() { return ended; }
+	public long getTime() { return now; }
+
+	// Cause run() to return early, e.g. from breakpoint()
+	public void stop() {
+		stop = true;
+		cpu.stopRun();
+	}
+
+	// Run for 'tStates', or until stop() or the end of the replay.
+	// Returns T-states actually run.
+	public long run(long tStates) {
+		long start = now;
+		long limit = now + tStates;
+		stop = false;
+		while (!stop && !ended && now < limit) {
+			long target = (now / quantum + 1) * quantum;
+			now += cpu.runFor((int)(target - now));
+			if (now < target) {
+				break;	// stopped
+			}
+			if (in != null) {
+				replayLines();
+				checkEnd();
+			} else {
+				applyLines();
+			}
+		}
+		return now - start;
+	}
+
+	// End the recording, or replay. Recording may continue after
+	// this if the (underlying) stream is still usable.
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+			return;
+		}
+		record(T_END, now);
+		out.flush();
+	}
+
+	// Interrupt (and DMA request) inputs. While recording, these may be
+	// called from any thread. While replaying, they are ignored.
+
+	public void setINTLine(boolean on) { postLine(L_INT, on); }
+	public void triggerNMI() { postLine(L_NMI, true); }
+	public void setINT1Line(boolean on) { postLine(L_INT1, on); }
+	public void setINT2Line(boolean on) { postLine(L_INT2, on); }
+	public void raiseIntnlIntr(int src) { postLine(L_INTNL + (src & 0x0f), true); }
+	public void lowerIntnlIntr(int src) { postLine(L_INTNL + (src & 0x0f), false); }
+	public void setRST5_5Line(boolean on) { postLine(L_RST5_5, on); }
+	public void setRST6_5Line(boolean on) { postLine(L_RST6_5, on); }
+	public void setRST7_5Line(boolean on) { postLine(L_RST7_5, on); }
+	public void setTRAPLine(boolean on) { postLine(L_TRAP, on); }
+	public void setDREQ0Line(boolean on) { postLine(L_DREQ0, on); }
+	public void setDREQ1Line(boolean on) { postLine(L_DREQ1, on); }
+
+	private synchronized void postLine(int line, boolean on) {
+		if (in != null) {
+			return;
+		}
+		if (nlines >= lines.length) {
+			lines = Arrays.copyOf(lines, lines.length * 2);
+		}
+		lines[nlines++] = line | (on ? 0x80 : 0);
+	}
+
+	private synchronized void applyLines() {
+		for (int x = 0; x < nlines; ++x) {
+			setLine(lines[x]);
+			record(T_LINE, now);
+			writeByte(lines[x]);
+		}
+		nlines = 0;
+	}
+
+	private void replayLines() {
+		while (nextTag == T_LINE && nextStamp == now) {
+			setLine(readByte());
+			nextRecord();
+		}
+	}
+
+	private void checkEnd() {
+		if (nextTag == T_END && nextStamp <= now) {
+			ended = true;
+		}
+	}
+
+	private void setLine(int l) {
+		boolean on = (l & 0x80) != 0;
+		l &= 0x7f;
+		switch (l) {
+		case L_INT:
+			cpu.setINTLine(on);
+			break;
+		case L_NMI:
+			cpu.triggerNMI();
+			break;
+		case L_INT1:
+			cpu.setINT1Line(on);
+			break;
+		case L_INT2:
+			cpu.setINT2Line(on);
+			break;
+		case L_RST5_5:
+		case L_RST6_5:
+		case L_RST7_5:
+		case L_TRAP:
+			if (cpu instanceof I8085) {
+				I8085 i = (I8085)cpu;
+				if (l == L_RST5_5) {
+					i.setRST5_5Line(on);
+				} else if (l == L_RST6_5) {
+					i.setRST6_5Line(on);
+				} else if (l == L_RST7_5) {
+					i.setRST7_5Line(on);
+				} else {
+					i.setTRAPLine(on);
+				}
+			}
+			break;
+		case L_DREQ0:
+		case L_DREQ1:
+			if (cpu instanceof Z180) {
+				if (l == L_DREQ0) {
+					((Z180)cpu).setDREQ0Line(on);
+				} else {
+					((Z180)cpu).setDREQ1Line(on);
+				}
+			}
+			break;
+		default:
+			if (l >= L_INTNL && cpu instanceof Z180) {
+				if (on) {
+					((Z180)cpu).raiseIntnlIntr(l - L_INTNL);
+				} else {
+					((Z180)cpu).lowerIntnlIntr(l - L_INTNL);
+				}
+			}
+			break;
+		}
+	}
+
+	// Stream access, IOException is unchecked here as these
+	// are used from inside the CPU.
+
+	private void record(int tag, long t) {
+		writeByte(tag);
+		writeVarint(t - stamp);
+		stamp = t;
+	}
+
+	private void writeByte(int b) {
+		try {
+			out.writeByte(b);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeVarint(long v) {
+		while ((v & ~0x7fL) != 0) {
+			writeByte((int)(v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		writeByte((int)v);
+	}
+
+	private int readByte() {
+		try {
+			return in.readUnsignedByte();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private long readVarint() {
+		long v = 0;
+		int s = 0;
+		int b;
+		do {
+			b = readByte();
+			v |= (long)(b & 0x7f) << s;
+			s += 7;
+		} while ((b & 0x80) != 0);
+		return v;
+	}
+
+	// Read the tag and time of the next record
+	private void nextRecord() {
+		try {
+			nextTag = in.readUnsignedByte();
+		} catch (EOFException e) {
+			nextTag = T_END;	// truncated, e.g. not closed
+			nextStamp = now;
+			return;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		stamp += readVarint();
+		nextStamp = stamp;
+	}
+
+	// Time of the current instruction
+	private long clock() {
+		return now + cpu.getRunCycles();
+	}
+
+	private void expect(int tag) {
+		if (nextTag != tag || nextStamp != clock()) {
+			diverged();
+		}
+	}
+
+	private void diverged() {
+		throw new IllegalStateException("Replay diverged at " + clock());
+	}
+
+	public int peek8(int address) {
+		return comp.peek8(address);
+	}
+
+	public void poke8(int address, int value) {
+		comp.poke8(address, value);
+	}
+
+	public int intrResp(IntMode mode) {
+		if (in != null) {
+			expect(T_RESP);
+			int v = readByte();
+			nextRecord();
+			return v;
+		}
+		int v = comp.intrResp(mode) & 0xff;
+		record(T_RESP, clock());
+		writeByte(v);
+		return v;
+	}
+
+	public void retIntr(int opCode) {
+		if (in == null) {
+			comp.retIntr(opCode);
+		}
+	}
+
+	public int inPort(int port) {
+		if (in != null) {
+			expect(T_IN);
+			if (readVarint() != (port & 0xffff)) {
+				diverged();
+			}
+			int v = readByte();
+			nextRecord();
+			return v;
+		}
+		int v = comp.inPort(port) & 0xff;
+		record(T_IN, clock());
+		writeVarint(port & 0xffff);
+		writeByte(v);
+		return v;
+	}
+
+	public void outPort(int port, int value) {
+		if (in == null) {
+			comp.outPort(port, value);
+		}
+	}
+
+	public void changeSpeed(int mlt, int div) {
+		comp.changeSpeed(mlt, div);
+	}
+
+	public void contendedStates(int address, int tstates) {
+		comp.contendedStates(address, tstates);
+	}
+
+	public long getTStates() {
+		return comp.getTStates();
+	}
+
+	public void breakpoint() {
+		comp.breakpoint();
+	}
+
+	public void execDone() {
+		comp.execDone();
+	}
+}
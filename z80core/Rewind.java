@@ -0,0 +1,473 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.nio.ByteBuffer;
+import z80core.Z80State.IntMode;
+
+// Reverse execution, for debugging. Sits between the CPU and the real
+// Computer (and ComputerIOs, Z180 ASCI and 8085 SID), so the CPU must be
+// constructed with the Rewind as its Computer, and io() in place of
+// each ComputerIO, and then attach()ed. While running (using step() or
+// run() here, not the CPU directly), the Rewind keeps a journal of memory
+// writes (with the old value), port inputs, interrupt responses and
+// changes to the interrupt and DMA request inputs (INT, NMI, INT1, INT2;
+// 8085 RST5.5/6.5/7.5 and TRAP; Z180 DREQ0/1 and internal interrupt
+// sources), and takes a checkpoint of the CPU (saveState()) every
+// 'interval' T-states. Inputs are seen between instructions.
+//
+// To go back in time, memory writes are undone back to the nearest
+// earlier checkpoint, the CPU state is restored, and execution replays
+// forward from there. While replaying, inputs come from the journal and
+// outputs are not passed on (devices already saw them). Once the replay
+// reaches the end of the journal, execution is "live" again. Device
+// state is not rewound, so when going back and then forward only the
+// journalled history is exact; changing anything (memory, registers)
+// while in the past should be followed by truncate().
+//
+// The journal is a ring of 'journal' entries (8 bytes each, one per
+// write/input), and there are at most 'checkpoints' checkpoints; the
+// oldest history is dropped when either is full. The CPU must not use a
+// PageTable, and peek8() must not have side effects. Not thread-safe.
+// Time is counted in CPU clock cycles, not including contended states.
+public class Rewind implements Computer {
+	// journal entry types, top 4 bits
+	private static final int WRITE = 1;	// addr 0-23, old 24-31
+	private static final int INPUT = 2;	// value 0-7, port 8-23
+	private static final int RESP = 3;	// value 0-7
+	private static final int LINES = 4;	// lines 0-31, next entry is STAMP
+	private static final int STAMP = 5;	// time 0-59
+	private static final int DEVIN = 6;	// value 0-7, device 8-23
+
+	private static final int L_INT = 1;
+	private static final int L_NMI = 2;
+	private static final int L_INT1 = 4;
+	private static final int L_INT2 = 8;
+	private static final int L_RST5_5 = 0x10;	// 8085
+	private static final int L_RST6_5 = 0x20;
+	private static final int L_RST7_5 = 0x40;
+	private static final int L_TRAP = 0x80;
+	private static final int L_DREQ0 = 0x100;	// Z180
+	private static final int L_DREQ1 = 0x200;
+	private static final int L_INTNL = 16;	// shift, Z180 sources
+
+	// A ComputerIO as seen by the CPU
+	private class IO implements ComputerIO {
+		private final ComputerIO dev;
+		private final int id;
+
+		private IO(ComputerIO dev, int id) {
+			this.dev = dev;
+			this.id = id;
+		}
+
+		public void setCPU(CPU cpu) {
+			dev.setCPU(cpu);
+		}
+
+		public int inPort(int port) {
+			if (cursor < head) {
+				return (int)next(DEVIN) & 0xff;
+			}
+			int v = dev.inPort(port);
+			put(DEVIN, (id << 8) | (v & 0xff));
+			return v;
+		}
+
+		public void outPort(int port, int value) {
+			if (cursor >= head) {
+				dev.outPort(port, value);
+			}
+		}
+	}
+
+	private final Computer comp;
+	private int ndevs = 0;
+	private CPU cpu;
+	private final long interval;
+	// the journal, entries 'tail' to 'head'-1 are valid
+	private final long[] jrnl;
+	private long tail = 0;
+	private long head = 0;
+	private long cursor = 0;	// next entry, < head if replaying
+	// checkpoints, a ring, 'first' is oldest
+	private final long[] ckTime;
+	private final long[] ckSeq;
+	private final int[] ckLines;
+	private final byte[][] ckState;
+	private int first = 0;
+	private int nck = 0;
+
+	private long now = 0;
+	private int lines = 0;	// interrupt inputs, as last journalled
+	private boolean stop = false;
+	private long end = 0;	// time at the end of the journal
+	private boolean search = false;	// travelling, breakpoints not passed on
+	private long hit;	// latest breakpoint found by search
+
+	// 'comp' is the real Computer, 'interval' is T-states between
+	// checkpoints, 'journal' and 'checkpoints' limit the history kept.
+	public Rewind(Computer comp, long interval, int journal, int checkpoints) {
+		this.comp = comp;
+		this.interval = interval;
+		jrnl = new long[journal];
+		ckTime = new long[checkpoints];
+		ckSeq = new long[checkpoints];
+		ckLines = new int[checkpoints];
+		ckState = new byte[checkpoints][];
+	}
+
+	// The ComputerIO to give to the CPU in place of 'dev'
+	public ComputerIO io(ComputerIO dev) {
+		return new IO(dev, ndevs++);
+	}
+
+	// Start recording 'cpu', from its current state, at time 0.
+	// History (if any) is discarded.
+	public void attach(CPU cpu) {
+		this.cpu = cpu;
+		tail = head = cursor = 0;
+		first = nck = 0;
+		now = end = 0;
+		lines = getLines();
+		checkpoint();
+	}
+
+	public long getTime() { return now; }
+	public boolean isReplaying() { return cursor < head; }
+
+	// Earliest time that can be returned to
+	public long getStart() {
+		return nck > 0 ? ckTime[first] : now;
+	}
+
+	// Latest time recorded, where replay ends
+	public long getEnd() { return end; }
+
+	// Cause run() to return early
+	public void stop() { stop = true; }
+
+	// Execute one instruction (or interrupt, etc), returns
+	// the (absolute) number of clock cycles.
+	public int step() {
+		if (cursor < head) {
+			replayLines();
+		} else {
+			int l = getLines();
+			if (l != lines) {
+				lines = l;
+				put(LINES, l & 0xffffffffL);
+				put(STAMP, now);
+			}
+		}
+		int cy = Math.abs(cpu.execute());
+		now += cy;
+		if (cursor >= head) {
+			end = now;
+			if (nck == 0 || now - ckTime[last()] >= interval) {
+				checkpoint();
+			}
+		}
+		return cy;
+	}
+
+	// Run for 'tStates', or until stop() (e.g. from the real
+	// Computer's breakpoint()).
+	// Returns T-states actually run.
+	public long run(long tStates) {
+		long start = now;
+		long limit = now + tStates;
+		stop = false;
+		while (!stop && now < limit) {
+			step();
+		}
+		return now - start;
+	}
+
+	// Go to the first instruction boundary at or after 'time', running
+	// live if past the end. Breakpoints are ignored on the way. Returns
+	// false, with nothing changed, if 'time' is before the earliest
+	// checkpoint.
+	public boolean gotoTime(long time) {
+		boolean s = search;
+		search = true;
+		try {
+			if (time < now && !restore(time)) {
+				return false;
+			}
+			while (now < time) {
+				step();
+			}
+		} finally {
+			search = s;
+		}
+		return true;
+	}
+
+	// Back up one instruction. Returns false if no history.
+	public boolean stepBack() {
+		long from = now;
+		if (from <= getStart()) {
+			return false;
+		}
+		search = true;
+		long prev;
+		try {
+			restore(from - 1);
+			prev = now;
+			while (now < from) {
+				prev = now;
+				step();
+			}
+		} finally {
+			search = false;
+		}
+		return gotoTime(prev);
+	}
+
+	// Go back to the latest breakpoint (as set in the CPU) before now.
+	// Returns false, with nothing changed, if there was none in history.
+	public boolean runBack() {
+		long from = now;
+		long to = from;
+		hit = -1;
+		search = true;
+		try {
+			for (int n = nck - 1; n >= 0; --n) {
+				int x = (first + n) % ckTime.length;
+				if (ckTime[x] >= to) {
+					continue;
+				}
+				hit = -1;
+				restore(ckTime[x]);
+				while (now < to) {
+					step();
+				}
+				if (hit >= 0) {
+					break;
+				}
+				to = ckTime[x];
+			}
+		} finally {
+			search = false;
+		}
+		long h = hit;
+		gotoTime(h >= 0 ? h : from);
+		return h >= 0;
+	}
+
+	// Discard history after now, e.g. after changing the past.
+	public void truncate() {
+		head = cursor;
+		end = now;
+		while (nck > 0 && ckTime[last()] > now) {
+			ckState[last()] = null;
+			--nck;
+		}
+	}
+
+	private int getLines() {
+		int l = 0;
+		if (cpu.isINTLine()) l |= L_INT;
+		if (cpu.isNMI()) l |= L_NMI;
+		if (cpu.isINT1Line()) l |= L_INT1;
+		if (cpu.isINT2Line()) l |= L_INT2;
+		if (cpu instanceof I8085) {
+			I8085 i = (I8085)cpu;
+			if (i.isRST5_5Line()) l |= L_RST5_5;
+			if (i.isRST6_5Line()) l |= L_RST6_5;
+			if (i.isRST7_5Line()) l |= L_RST7_5;
+			if (i.isTRAPLine()) l |= L_TRAP;
+		} else if (cpu instanceof Z180) {
+			Z180 z = (Z180)cpu;
+			if (z.isDREQ0Line()) l |= L_DREQ0;
+			if (z.isDREQ1Line()) l |= L_DREQ1;
+			l |= z.getIntnlIntr() << L_INTNL;
+		}
+		return l;
+	}
+
+	private void replayLines() {
+		long e = jrnl[idx(cursor)];
+		if (type(e) != LINES || cursor + 1 >= head ||
+				(jrnl[idx(cursor + 1)] & 0x0fffffffffffffffL) != now) {
+			return;
+		}
+		cursor += 2;
+		int l = (int)e;
+		cpu.setINTLine((l & L_INT) != 0);
+		if ((l & L_NMI) != 0 && !cpu.isNMI()) {
+			cpu.triggerNMI();
+		}
+		if (cpu.hasINT1()) cpu.setINT1Line((l & L_INT1) != 0);
+		if (cpu.hasINT2()) cpu.setINT2Line((l & L_INT2) != 0);
+		if (cpu instanceof I8085) {
+			I8085 i = (I8085)cpu;
+			i.setRST5_5Line((l & L_RST5_5) != 0);
+			i.setRST6_5Line((l & L_RST6_5) != 0);
+			i.setRST7_5Line((l & L_RST7_5) != 0);
+			i.setTRAPLine((l & L_TRAP) != 0);
+		} else if (cpu instanceof Z180) {
+			Z180 z = (Z180)cpu;
+			z.setDREQ0Line((l & L_DREQ0) != 0);
+			z.setDREQ1Line((l & L_DREQ1) != 0);
+			int d = (l >>> L_INTNL) ^ z.getIntnlIntr();
+			for (int src = 0; src < 16; ++src) {
+				if ((d & (1 << src)) == 0) {
+					continue;
+				}
+				if ((l & (1 << (src + L_INTNL))) != 0) {
+					z.raiseIntnlIntr(src);
+				} else {
+					z.lowerIntnlIntr(src);
+				}
+			}
+		}
+		lines = l;
+	}
+
+	private int last() {
+		return (first + nck - 1) % ckTime.length;
+	}
+
+	private void checkpoint() {
+		int x;
+		if (nck < ckTime.length) {
+			x = (first + nck++) % ckTime.length;
+		} else {
+			x = first;
+			first = (first + 1) % ckTime.length;
+		}
+		if (ckState[x] == null) {
+			ckState[x] = new byte[cpu.stateSize()];
+		}
+		cpu.saveState(ByteBuffer.wrap(ckState[x]));
+		ckTime[x] = now;
+		ckSeq[x] = head;
+		ckLines[x] = lines;
+	}
+
+	// Undo to the latest checkpoint at or before 'time'
+	private boolean restore(long time) {
+		int n = nck - 1;
+		while (n >= 0 && ckTime[(first + n) % ckTime.length] > time) {
+			--n;
+		}
+		if (n < 0) {
+			return false;
+		}
+		int x = (first + n) % ckTime.length;
+		// memory first, loadState() may flush cached code
+		while (cursor > ckSeq[x]) {
+			long e = jrnl[idx(--cursor)];
+			if (type(e) == WRITE) {
+				comp.poke8((int)e & 0xffffff, (int)(e >> 24) & 0xff);
+			}
+		}
+		cursor = ckSeq[x];
+		cpu.loadState(ByteBuffer.wrap(ckState[x]));
+		now = ckTime[x];
+		lines = ckLines[x];
+		return true;
+	}
+
+	private int idx(long seq) {
+		return (int)(seq % jrnl.length);
+	}
+
+	private static int type(long e) {
+		return (int)(e >>> 60);
+	}
+
+	private void put(int type, long data) {
+		if (head - tail >= jrnl.length) {
+			++tail;
+			// drop checkpoints that can no longer be reached
+			while (nck > 0 && ckSeq[first] < tail) {
+				ckState[first] = null;
+				first = (first + 1) % ckTime.length;
+				--nck;
+			}
+		}
+		jrnl[idx(head++)] = ((long)type << 60) | data;
+		cursor = head;
+	}
+
+	// Next journal entry while replaying, must be 'type'
+	private long next(int type) {
+		long e = jrnl[idx(cursor)];
+		if (type(e) != type) {
+			throw new IllegalStateException("Replay diverged at " + now);
+		}
+		++cursor;
+		return e;
+	}
+
+	public int peek8(int address) {
+		return comp.peek8(address);
+	}
+
+	public void poke8(int address, int value) {
+		if (cursor < head) {
+			next(WRITE);
+		} else {
+			put(WRITE, ((long)comp.peek8(address) << 24) |
+					(address & 0xffffff));
+		}
+		comp.poke8(address, value);
+	}
+
+	public int intrResp(IntMode mode) {
+		if (cursor < head) {
+			return (int)next(RESP) & 0xff;
+		}
+		int v = comp.intrResp(mode);
+		put(RESP, v & 0xff);
+		return v;
+	}
+
+	public void retIntr(int opCode) {
+		if (cursor >= head) {
+			comp.retIntr(opCode);
+		}
+	}
+
+	public int inPort(int port) {
+		if (cursor < head) {
+			return (int)next(INPUT) & 0xff;
+		}
+		int v = comp.inPort(port);
+		put(INPUT, ((port & 0xffff) << 8) | (v & 0xff));
+		return v;
+	}
+
+	public void outPort(int port, int value) {
+		if (cursor >= head) {
+			comp.outPort(port, value);
+		}
+	}
+
+	public void changeSpeed(int mlt, int div) {
+		comp.changeSpeed(mlt, div);
+	}
+
+	public void contendedStates(int address, int tstates) {
+		comp.contendedStates(address, tstates);
+	}
+
+	public long getTStates() {
+		return comp.getTStates();
+	}
+
+	public void breakpoint() {
+		if (search) {
+			hit = now;
+			return;
+		}
+		comp.breakpoint();
+	}
+
+	public void execDone() {
+		comp.execDone();
+	}
+}
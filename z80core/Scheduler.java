@@ -0,0 +1,206 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.util.Arrays;
+
+// Time-ordered events for devices, driven by the CPU. Instead of each
+// device checking the time after every instruction, a device posts an
+// Event for the (absolute) time it needs attention, and run() lets the
+// CPU execute, using CPU.runFor(), only up to the next due event.
+//
+// Time is counted in T-states of the base clock, i.e. CPU clock cycles
+// when the clock multiplier and divider are both 1. For a Z80S180, that
+// is the crystal (or external clock) frequency. The Computer should pass
+// its changeSpeed() notifications on to changeSpeed() here, and may use
+// getTStates() to implement Computer.getTStates().
+//
+// Events fire at the end of the instruction during which they came due,
+// in order of time and then of posting. An Event may post further
+// events, including for the current time. Not thread-safe, all methods
+// must be called from the thread running the CPU.
+public class Scheduler {
+	public interface Event {
+		// 'when' is the time the event was posted for,
+		// getTStates() may be (slightly) later.
+		void fire(long when);
+	}
+
+	private long now = 0;
+	private int mlt = 1;
+	private int div = 1;
+	private int frac = 0;	// CPU cycles * div not yet in 'now'
+	private CPU cpu = null;	// running, in run()
+	private int settled = 0;	// of its runFor() cycles, already in 'now'
+	private boolean respeed = false;	// runFor() stopped by changeSpeed()
+	// binary min-heap on (when, seq)
+	private long[] when = new long[16];
+	private long[] seq = new long[16];
+	private Event[] evts = new Event[16];
+	private int count = 0;
+	private long nextSeq = 0;
+
+	public Scheduler() { }
+
+	public long getTStates() { return now; }
+
+	// CPU clock is now base clock * 'mlt' / 'div'. If called while
+	// run() is in CPU.runFor(), the cycles run so far are accounted
+	// at the old speed first, and runFor() is stopped after the current
+	// instruction so that run() can work out the cycles to the next
+	// event at the new speed.
+	public void changeSpeed(int mlt, int div) {
+		if (cpu != null) {
+			int cy = cpu.getRunCycles() - settled;
+			if (cy > 0) {
+				account(cy);
+				settled += cy;
+			}
+			respeed = true;
+			cpu.stopRun();
+		}
+		this.mlt = mlt;
+		this.div = div;
+		frac = 0;
+	}
+
+	// Post 'evt' for absolute time 'at'. A time already past
+	// fires after the current (or next) instruction.
+	public void schedule(Event evt, long at) {
+		if (count >= when.length) {
+			int n = when.length * 2;
+			when = Arrays.copyOf(when, n);
+			seq = Arrays.copyOf(seq, n);
+			evts = Arrays.copyOf(evts, n);
+		}
+		int x = count++;
+		when[x] = at;
+		seq[x] = nextSeq++;
+		evts[x] = evt;
+		siftUp(x);
+	}
+
+	// Post 'evt' for 'delay' T-states from now
+	public void after(Event evt, long delay) {
+		schedule(evt, now + delay);
+	}
+
+	// Remove all postings of 'evt', returns false if there were none.
+	public boolean cancel(Event evt) {
+		boolean ret = false;
+		int x = 0;
+		while (x < count) {
+			if (evts[x] == evt) {
+				remove(x);
+				ret = true;
+				x = 0;	// heap order changed
+			} else {
+				++x;
+			}
+		}
+		return ret;
+	}
+
+	// Time of the next event, Long.MAX_VALUE if none
+	public long nextEvent() {
+		return count > 0 ? when[0] : Long.MAX_VALUE;
+	}
+
+	// Account for 'cycles' CPU clock cycles, e.g. the (absolute) value
+	// returned by CPU.execute(), and fire any events now due.
+	public void advance(int cycles) {
+		account(cycles);
+		while (count > 0 && when[0] <= now) {
+			long t = when[0];
+			Event evt = evts[0];
+			remove(0);
+			evt.fire(t);
+		}
+	}
+
+	private void account(int cycles) {
+		long f = (long)cycles * div + frac;
+		now += f / mlt;
+		frac = (int)(f % mlt);
+	}
+
+	// Run 'cpu' for 'tStates' (base clock), firing events as they come
+	// due. Returns the number of T-states actually run, which is less
+	// than 'tStates' only if the CPU was stopped (CPU.stopRun()).
+	public long run(CPU cpu, long tStates) {
+		long end = now + tStates;
+		long start = now;
+		while (now < end) {
+			long next = Math.min(nextEvent(), end);
+			// CPU cycles to reach 'next', rounded up
+			long n = ((next - now) * mlt - frac + div - 1) / div;
+			if (n <= 0) {
+				advance(0);
+				continue;
+			}
+			int budget = (int)Math.min(n, Integer.MAX_VALUE / 4);
+			this.cpu = cpu;
+			settled = 0;
+			respeed = false;
+			int cy;
+			try {
+				cy = cpu.runFor(budget);
+			} finally {
+				this.cpu = null;
+			}
+			advance(cy - settled);
+			if (cy < budget && !respeed) {
+				break;	// stopped
+			}
+		}
+		return now - start;
+	}
+
+	private boolean before(int a, int b) {
+		return when[a] < when[b] || (when[a] == when[b] && seq[a] < seq[b]);
+	}
+
+	private void swap(int a, int b) {
+		long t = when[a]; when[a] = when[b]; when[b] = t;
+		t = seq[a]; seq[a] = seq[b]; seq[b] = t;
+		Event e = evts[a]; evts[a] = evts[b]; evts[b] = e;
+	}
+
+	private void siftUp(int x) {
+		while (x > 0) {
+			int p = (x - 1) / 2;
+			if (!before(x, p)) {
+				break;
+			}
+			swap(x, p);
+			x = p;
+		}
+	}
+
+	private void siftDown(int x) {
+		for (;;) {
+			int c = 2 * x + 1;
+			if (c >= count) {
+				break;
+			}
+			if (c + 1 < count && before(c + 1, c)) {
+				++c;
+			}
+			if (!before(c, x)) {
+				break;
+			}
+			swap(x, c);
+			x = c;
+		}
+	}
+
+	private void remove(int x) {
+		--count;
+		if (x != count) {
+			swap(x, count);
+			siftDown(x);
+			siftUp(x);
+		}
+		evts[count] = null;
+	}
+}
@@ -0,0 +1,43 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+// Codes for special cycles, as returned by CPU.specialCycleCode()
+// when execute() returns a negative number (or CycleListener is called).
+// Codes are plain ints, and names are preallocated, so reporting a
+// special cycle never creates garbage.
+public final class SpecialCycle {
+	public static final int NONE = 0;
+	public static final int INT = 1;	// INT (Z80, 8080, 8085)
+	public static final int INT0 = 2;	// Z180 INT0
+	public static final int NMI = 3;
+	public static final int DMA = 4;
+	public static final int TRAP = 5;
+	// Z180 internal interrupt source 'n' (0-15) is INT1 + n,
+	// named "INT1", "INT2", ... (n=0 is INT1, n=2 is PRT0, ...)
+	public static final int INT1 = 6;
+	public static final int MAX = INT1 + 16;
+
+	private static final String[] names = new String[MAX];
+	static {
+		names[NONE] = "";
+		names[INT] = "INT";
+		names[INT0] = "INT0";
+		names[NMI] = "NMI";
+		names[DMA] = "DMA";
+		names[TRAP] = "TRAP";
+		for (int n = 0; n < 16; ++n) {
+			names[INT1 + n] = "INT" + Integer.toString(n + 1);
+		}
+	}
+
+	private SpecialCycle() { }
+
+	// Name of special cycle 'code', e.g. for tracing
+	public static String name(int code) {
+		if (code < 0 || code >= MAX) {
+			return "?";
+		}
+		return names[code];
+	}
+}
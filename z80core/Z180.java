@@ -12,6 +12,9 @@
 //-----------------------------------------------------------------------------
 package z80core;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import z80core.Z80State.IntMode;
 
@@ -46,7 +49,18 @@ public class Z180 implements CPU {
 	// Acumulador y resto de registros de 8 bits
 	private int regA, regB, regC, regD, regE, regH, regL;
 	// Flags sIGN, zERO, 5, hALFCARRY, 3, pARITY y ADDSUB (n)
+	// Negative (LAZY_*) if not yet evaluated, see flags().
 	private int sz5h3pnFlags;
+	// Lazy flags: 8-bit arithmetic only records its operands
+	private boolean lazyFlags = false;
+	private int lazyA, lazyOper, lazyRes;
+	private static final int LAZY_ADD = -1;
+	private static final int LAZY_ADC = -2;
+	private static final int LAZY_SUB = -3;
+	private static final int LAZY_SBC = -4;
+	private static final int LAZY_CP = -5;
+	private static final int LAZY_INC = -6;
+	private static final int LAZY_DEC = -7;
 	// El flag Carry es el único que se trata aparte
 	private boolean carryFlag;
 	/* Flags para indicar la modificación del registro F en la instrucción actual
@@ -86,22 +100,53 @@ public class Z180 implements CPU {
 	// EI solo habilita las interrupciones DESPUES de ejecutar la
 	// siguiente instrucción (excepto si la siguiente instrucción es un EI...)
 	private boolean pendingEI = false;
-	// Estado de la línea NMI
-	private boolean activeNMI = false;
 	private boolean activeTRAP = false;
 	private boolean activeDMA = false;
-	private String spcl = "";
-	// Si está activa la línea INT
-	// En el 48 y los +2a/+3 la línea INT se activa durante 32 ciclos de reloj
-	// En el 128 y +2, se activa 36 ciclos de reloj
-	private boolean activeINT = false;
+	private int spcl = SpecialCycle.NONE;
+	private CycleListener cycListener = null;
+	private Profiler prof = null;
+	private MemoryHeat heat = null;	// only during runProfiled()
+	private PortStats ports = null;	// only during runProfiled()
+	private PageTable pageTable = null;
+	private volatile boolean stopRun = false;
+	private int runCy = 0;	// T-states so far in runFor()
+	// Complete LDIR/LDDR/CPIR/CPDR without returning from execute()
+	private boolean blockBulk = false;
+	private int blockBudget = 0;	// cycles remaining in runFor()
+	// Complete burst-mode DMA without returning from execute()
+	private boolean dmaBulk = false;
+	private int dmaBudget = 0;	// cycles remaining in runFor()
+	private byte[] dmaBuf = null;	// for BlockIO transfers
+	// Internal interrupt requests (incl. INT1/INT2), one bit per source,
+	// plus the INT0 (level), NMI (set until taken) and DREQ input lines.
+	// Only changed through INT_LINES, so devices on other threads may
+	// raise/lower requests without locking.
 	private int intLines = 0;
-	private int preFRC = 0;
+	private static final int INT0_LINE = 1 << 16;
+	private static final int NMI_LINE = 1 << 17;
+	private static final int DREQ0_LINE = 1 << 18;
+	private static final int DREQ1_LINE = 1 << 19;
+	private static final int DREQ0_EDGE = 1 << 20;
+	private static final int DREQ1_EDGE = 1 << 21;
+	private static final VarHandle INT_LINES;
+	static {
+		try {
+			INT_LINES = MethodHandles.lookup().findVarHandle(
+				Z180.class, "intLines", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	private int preFRC = 0;	// FRC prescaler, as of timerSync
+	private long clock = 0;		// cycles counted by tickFRC()
+	private long timerSync = 0;	// clock when FRC/PRT were last updated
+	private long timerNext = Long.MAX_VALUE; // clock of next TIF setting
 	// Modo de interrupción
 	private IntMode modeINT = IntMode.IM0;
 	private boolean intrFetch = false;
 	// halted == true cuando la CPU está ejecutando un HALT (28/03/2010)
 	private boolean halted = false;
+	private boolean sleeping = false;	// halted by SLP
 	// pinReset == true, se ha producido un reset a través de la patilla
 	private boolean pinReset = false;
 	/*
@@ -132,6 +177,7 @@ public class Z180 implements CPU {
 	private int bnk1;
 	private int cbr;
 	private int com1;
+	private int[] mmu = new int[16];	// logical 4K page => physical offset
 	private int mw;	// number of added MREQ WAIT cycles
 	private int iw;	// number of added IORQ WAIT cycles
 	private int rw;	// number of REF cycles total (w/WAIT)
@@ -361,7 +407,7 @@ public class Z180 implements CPU {
 
 	// Acceso a registros de 16 bits
 	public final int getRegAF() {
-		return (regA << 8) | (carryFlag ? sz5h3pnFlags | CARRY_MASK : sz5h3pnFlags);
+		return (regA << 8) | (carryFlag ? flags() | CARRY_MASK : flags());
 	}
 
 	public final void setRegAF(int word) {
@@ -598,92 +644,92 @@ public class Z180 implements CPU {
 	}
 
 	public final boolean isAddSubFlag() {
-		return (sz5h3pnFlags & ADDSUB_MASK) != 0;
+		return (flags() & ADDSUB_MASK) != 0;
 	}
 
 	public final void setAddSubFlag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= ADDSUB_MASK;
+			sz5h3pnFlags = flags() | ADDSUB_MASK;
 		} else {
-			sz5h3pnFlags &= ~ADDSUB_MASK;
+			sz5h3pnFlags = flags() & ~ADDSUB_MASK;
 		}
 	}
 
 	public final boolean isParOverFlag() {
-		return (sz5h3pnFlags & PARITY_MASK) != 0;
+		return (flags() & PARITY_MASK) != 0;
 	}
 
 	public final void setParOverFlag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= PARITY_MASK;
+			sz5h3pnFlags = flags() | PARITY_MASK;
 		} else {
-			sz5h3pnFlags &= ~PARITY_MASK;
+			sz5h3pnFlags = flags() & ~PARITY_MASK;
 		}
 	}
 
 	public final boolean isBit3Flag() {
-		return (sz5h3pnFlags & BIT3_MASK) != 0;
+		return (flags() & BIT3_MASK) != 0;
 	}
 
 	public final void setBit3Flag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= BIT3_MASK;
+			sz5h3pnFlags = flags() | BIT3_MASK;
 		} else {
-			sz5h3pnFlags &= ~BIT3_MASK;
+			sz5h3pnFlags = flags() & ~BIT3_MASK;
 		}
 	}
 
 	public final boolean isHalfCarryFlag() {
-		return (sz5h3pnFlags & HALFCARRY_MASK) != 0;
+		return (flags() & HALFCARRY_MASK) != 0;
 	}
 
 	public final void setHalfCarryFlag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			sz5h3pnFlags = flags() | HALFCARRY_MASK;
 		} else {
-			sz5h3pnFlags &= ~HALFCARRY_MASK;
+			sz5h3pnFlags = flags() & ~HALFCARRY_MASK;
 		}
 	}
 
 	public final boolean isBit5Flag() {
-		return (sz5h3pnFlags & BIT5_MASK) != 0;
+		return (flags() & BIT5_MASK) != 0;
 	}
 
 	public final void setBit5Flag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= BIT5_MASK;
+			sz5h3pnFlags = flags() | BIT5_MASK;
 		} else {
-			sz5h3pnFlags &= ~BIT5_MASK;
+			sz5h3pnFlags = flags() & ~BIT5_MASK;
 		}
 	}
 
 	public final boolean isZeroFlag() {
-		return (sz5h3pnFlags & ZERO_MASK) != 0;
+		return (flags() & ZERO_MASK) != 0;
 	}
 
 	public final void setZeroFlag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= ZERO_MASK;
+			sz5h3pnFlags = flags() | ZERO_MASK;
 		} else {
-			sz5h3pnFlags &= ~ZERO_MASK;
+			sz5h3pnFlags = flags() & ~ZERO_MASK;
 		}
 	}
 
 	public final boolean isSignFlag() {
-		return (sz5h3pnFlags & SIGN_MASK) != 0;
+		return (flags() & SIGN_MASK) != 0;
 	}
 
 	public final void setSignFlag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= SIGN_MASK;
+			sz5h3pnFlags = flags() | SIGN_MASK;
 		} else {
-			sz5h3pnFlags &= ~SIGN_MASK;
+			sz5h3pnFlags = flags() & ~SIGN_MASK;
 		}
 	}
 
 	// Acceso a los flags F
 	public final int getFlags() {
-		return carryFlag ? sz5h3pnFlags | CARRY_MASK : sz5h3pnFlags;
+		return carryFlag ? flags() | CARRY_MASK : flags();
 	}
 
 	public final void setFlags(int regF) {
@@ -712,38 +758,80 @@ public class Z180 implements CPU {
 	}
 
 	public final boolean hasNMI() { return true; }
-	public final boolean isNMI() { return activeNMI; }
-	public final void setNMI(boolean nmi) { activeNMI = nmi; }
+	public final boolean isNMI() { return (intLines() & NMI_LINE) != 0; }
+	public final void setNMI(boolean nmi) { setIntLines(NMI_LINE, nmi); }
 	// La línea de NMI se activa por impulso, no por nivel
-	public final void triggerNMI() { activeNMI = true; }
+	public final void triggerNMI() { setIntLines(NMI_LINE, true); }
 
 	// La línea INT se activa por nivel
-	public final boolean isINTLine() { return activeINT; }
-	public final void setINTLine(boolean intLine) { activeINT = intLine; }
+	public final boolean isINTLine() { return (intLines() & INT0_LINE) != 0; }
+	public final void setINTLine(boolean intLine) { setIntLines(INT0_LINE, intLine); }
 
 	public final boolean hasINT1() { return true; }
-	public final boolean isINT1Line() { return ((intLines & 0b0001) != 0); }
+	public final boolean isINT1Line() { return ((intLines() & 0b0001) != 0); }
 	public final void setINT1Line(boolean intLine) {
 		if (intLine) raiseIntnlIntr(0);
 		else lowerIntnlIntr(0);
 	}
 
 	public final boolean hasINT2() { return true; }
-	public final boolean isINT2Line() { return ((intLines & 0b0010) != 0); }
+	public final boolean isINT2Line() { return ((intLines() & 0b0010) != 0); }
 	public final void setINT2Line(boolean intLine) {
 		if (intLine) raiseIntnlIntr(1);
 		else lowerIntnlIntr(1);
 	}
 
+	// DMA request inputs. Depending on DCNTL DMS0/DMS1, a channel
+	// transfers while its line is active (level), or once for each
+	// activation (edge).
+	public final boolean isDREQ0Line() { return (intLines() & DREQ0_LINE) != 0; }
+	public final void setDREQ0Line(boolean dreq) {
+		setDREQ(DREQ0_LINE, DREQ0_EDGE, dreq);
+	}
+
+	public final boolean isDREQ1Line() { return (intLines() & DREQ1_LINE) != 0; }
+	public final void setDREQ1Line(boolean dreq) {
+		setDREQ(DREQ1_LINE, DREQ1_EDGE, dreq);
+	}
+
+	private void setDREQ(int line, int edge, boolean dreq) {
+		if (!dreq) {
+			setIntLines(line, false);
+			return;
+		}
+		int old = (int)INT_LINES.getAndBitwiseOrRelease(this, line);
+		if ((old & line) == 0) {
+			setIntLines(edge, true);
+		}
+	}
+
 	// Includes INT1/INT2.
 	// 16 sources allowed, but Z180 has only 9.
-	public synchronized void raiseIntnlIntr(int src) {
+	// May be called from any thread.
+	public void raiseIntnlIntr(int src) {
 		src &= 0x0f;
-		intLines |= (1 << src);
+		INT_LINES.getAndBitwiseOrRelease(this, 1 << src);
 	}
-	public synchronized void lowerIntnlIntr(int src) {
+	public void lowerIntnlIntr(int src) {
 		src &= 0x0f;
-		intLines &= ~(1 << src);
+		INT_LINES.getAndBitwiseAndRelease(this, ~(1 << src));
+	}
+	// Raised sources, bit 'src' for each
+	public int getIntnlIntr() {
+		return intLines() & 0xffff;
+	}
+
+	// current interrupt requests and lines
+	private int intLines() {
+		return (int)INT_LINES.getAcquire(this);
+	}
+
+	private void setIntLines(int lines, boolean on) {
+		if (on) {
+			INT_LINES.getAndBitwiseOrRelease(this, lines);
+		} else {
+			INT_LINES.getAndBitwiseAndRelease(this, ~lines);
+		}
 	}
 
 	//Acceso al modo de interrupción
@@ -804,9 +892,10 @@ public class Z180 implements CPU {
 		state.setIFF1(ffIFF1);
 		state.setIFF2(ffIFF2);
 		state.setIM(modeINT);
-		state.setINTLine(activeINT);
+		int lines = intLines();
+		state.setINTLine((lines & INT0_LINE) != 0);
 		state.setPendingEI(pendingEI);
-		state.setNMI(activeNMI);
+		state.setNMI((lines & NMI_LINE) != 0);
 		state.setFlagQ(lastFlagQ);
 		return state;
 	}
@@ -839,13 +928,157 @@ public class Z180 implements CPU {
 		ffIFF1 = state.isIFF1();
 		ffIFF2 = state.isIFF2();
 		modeINT = state.getIM();
-		activeINT = state.isINTLine();
+		setIntLines(INT0_LINE, state.isINTLine());
 		pendingEI = state.isPendingEI();
-		activeNMI = state.isNMI();
+		setIntLines(NMI_LINE, state.isNMI());
 		flagQ = false;
 		lastFlagQ = state.isFlagQ();
 	}
 
+	// Binary snapshot: the complete CPU state, including on-chip
+	// registers, but not the configuration (Computer, ASCI, PageTable,
+	// listeners, breakpoints, bulk/lazy modes). Read/written at the
+	// buffer's position, in the buffer's byte order. Restoring
+	// reproduces the same execution from that point.
+	private static final int SNAP_MAGIC = 0x5a313830;	// "Z180"
+	private static final int SNAP_VERSION = 1;
+
+	public int stateSize() { return 185; }
+
+	public void saveState(ByteBuffer buf) {
+		buf.putInt(SNAP_MAGIC);
+		buf.putShort((short)SNAP_VERSION);
+		buf.put((byte)regA);
+		buf.put((byte)regB);
+		buf.put((byte)regC);
+		buf.put((byte)regD);
+		buf.put((byte)regE);
+		buf.put((byte)regH);
+		buf.put((byte)regL);
+		buf.putInt(sz5h3pnFlags);	// may be a LAZY_* code
+		buf.putInt(lazyA);
+		buf.putInt(lazyOper);
+		buf.putInt(lazyRes);
+		buf.put((byte)regAx);
+		buf.put((byte)regFx);
+		buf.put((byte)regBx);
+		buf.put((byte)regCx);
+		buf.put((byte)regDx);
+		buf.put((byte)regEx);
+		buf.put((byte)regHx);
+		buf.put((byte)regLx);
+		buf.putShort((short)regPC);
+		buf.putShort((short)regSP);
+		buf.putShort((short)regIX);
+		buf.putShort((short)regIY);
+		buf.putShort((short)memptr);
+		buf.put((byte)regI);
+		buf.putInt(regR);
+		buf.put((byte)modeINT.ordinal());
+		buf.putInt(intLines());
+		buf.putInt(ticks);
+		buf.put((byte)spcl);
+		int f = 0;
+		if (carryFlag) f |= 0x0001;
+		if (flagQ) f |= 0x0002;
+		if (lastFlagQ) f |= 0x0004;
+		if (regRbit7) f |= 0x0008;
+		if (ffIFF1) f |= 0x0010;
+		if (ffIFF2) f |= 0x0020;
+		if (pendingEI) f |= 0x0040;
+		if (halted) f |= 0x0080;
+		if (intrFetch) f |= 0x0100;
+		if (activeDMA) f |= 0x0200;
+		if (sleeping) f |= 0x0400;
+		buf.putShort((short)f);
+		buf.put(ccr);
+		buf.putInt(ioa);
+		buf.putInt(cbr);
+		buf.putInt(bbr);
+		buf.putInt(com1);
+		buf.putInt(bnk1);
+		buf.put((byte)mw);
+		buf.put((byte)iw);
+		buf.put((byte)rw);
+		buf.putShort((short)rc);
+		buf.putInt(rcc);
+		buf.putInt(preFRC);
+		buf.putLong(clock);
+		buf.putLong(timerSync);
+		buf.putLong(timerNext);
+	}
+
+	public void loadState(ByteBuffer buf) {
+		if (buf.getInt() != SNAP_MAGIC || buf.getShort() != SNAP_VERSION) {
+			throw new IllegalArgumentException("Not a Z180 snapshot");
+		}
+		regA = buf.get() & 0xff;
+		regB = buf.get() & 0xff;
+		regC = buf.get() & 0xff;
+		regD = buf.get() & 0xff;
+		regE = buf.get() & 0xff;
+		regH = buf.get() & 0xff;
+		regL = buf.get() & 0xff;
+		sz5h3pnFlags = buf.getInt();
+		lazyA = buf.getInt();
+		lazyOper = buf.getInt();
+		lazyRes = buf.getInt();
+		regAx = buf.get() & 0xff;
+		regFx = buf.get() & 0xff;
+		regBx = buf.get() & 0xff;
+		regCx = buf.get() & 0xff;
+		regDx = buf.get() & 0xff;
+		regEx = buf.get() & 0xff;
+		regHx = buf.get() & 0xff;
+		regLx = buf.get() & 0xff;
+		regPC = buf.getShort() & 0xffff;
+		regSP = buf.getShort() & 0xffff;
+		regIX = buf.getShort() & 0xffff;
+		regIY = buf.getShort() & 0xffff;
+		memptr = buf.getShort() & 0xffff;
+		regI = buf.get() & 0xff;
+		regR = buf.getInt();
+		switch (buf.get()) {
+		case 0: modeINT = IntMode.IM0; break;
+		case 1: modeINT = IntMode.IM1; break;
+		default: modeINT = IntMode.IM2; break;
+		}
+		INT_LINES.setRelease(this, buf.getInt());
+		ticks = buf.getInt();
+		spcl = buf.get();
+		int f = buf.getShort();
+		carryFlag = (f & 0x0001) != 0;
+		flagQ = (f & 0x0002) != 0;
+		lastFlagQ = (f & 0x0004) != 0;
+		regRbit7 = (f & 0x0008) != 0;
+		ffIFF1 = (f & 0x0010) != 0;
+		ffIFF2 = (f & 0x0020) != 0;
+		pendingEI = (f & 0x0040) != 0;
+		halted = (f & 0x0080) != 0;
+		intrFetch = (f & 0x0100) != 0;
+		activeDMA = (f & 0x0200) != 0;
+		sleeping = (f & 0x0400) != 0;
+		buf.get(ccr);
+		ioa = buf.getInt();
+		cbr = buf.getInt();
+		bbr = buf.getInt();
+		com1 = buf.getInt();
+		bnk1 = buf.getInt();
+		setMMU();
+		mw = buf.get();
+		iw = buf.get();
+		rw = buf.get();
+		rc = buf.getShort();
+		rcc = buf.getInt();
+		preFRC = buf.getInt();
+		clock = buf.getLong();
+		timerSync = buf.getLong();
+		timerNext = buf.getLong();
+		if (z180s) {
+			computerImpl.changeSpeed(getClkMult(), getClkDiv());
+		}
+	}
+
 	// Reset
 	/* Según el documento de Sean Young, que se encuentra en
 	 * [http://www.myquest.com/z80undocumented], la mejor manera de emular el
@@ -888,9 +1121,8 @@ public class Z180 implements CPU {
 		ffIFF1 = false;
 		ffIFF2 = false;
 		pendingEI = false;
-		activeNMI = false;
-		activeINT = false;
-		intLines = 0;
+		// DREQ inputs are external, only the edges are forgotten
+		INT_LINES.getAndBitwiseAndRelease(this, DREQ0_LINE | DREQ1_LINE);
 		preFRC = 0;
 		halted = false;
 		setIM(IntMode.IM0);
@@ -922,6 +1154,9 @@ public class Z180 implements CPU {
 		ccr[0x3a] = (byte)0b11111111;	// CBAR
 		com1 = (ccr[0x3a] & 0xf0) << 8;
 		bnk1 = (ccr[0x3a] & 0x0f) << 12;
+		setMMU();
+		timerSync = clock;
+		scheduleTimers();
 		if (z180s) {
 			computerImpl.changeSpeed(getClkMult(), getClkDiv());
 		}
@@ -940,7 +1175,10 @@ public class Z180 implements CPU {
 	}
 
 	// Really should be protected, and ASCI is friend class
-	public byte[] getCCR() { return ccr; }
+	public byte[] getCCR() {
+		syncTimers();
+		return ccr;
+	}
 
 	// Rota a la izquierda el valor del argumento
 	// El bit 0 y el flag C toman el valor del bit 7 antes de la operación
@@ -1104,59 +1342,88 @@ public class Z180 implements CPU {
 	private int inc8(int oper8) {
 		oper8 = (oper8 + 1) & 0xff;
 
-		sz5h3pnFlags = sz53n_addTable[oper8];
-
-		if ((oper8 & 0x0f) == 0) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
-		}
-
-		if (oper8 == 0x80) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+		if (lazyFlags) {
+			lazyRes = oper8;
+			sz5h3pnFlags = LAZY_INC;
+		} else {
+			sz5h3pnFlags = inc8Flags(oper8);
 		}
 
 		flagQ = true;
 		return oper8;
 	}
 
-	// Decrementa un valor de 8 bits modificando los flags oportunos
-	private int dec8(int oper8) {
-		oper8 = (oper8 - 1) & 0xff;
+	private static int inc8Flags(int res) {
+		int flags = sz53n_addTable[res];
 
-		sz5h3pnFlags = sz53n_subTable[oper8];
+		if ((res & 0x0f) == 0) {
+			flags |= HALFCARRY_MASK;
+		}
 
-		if ((oper8 & 0x0f) == 0x0f) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+		if (res == 0x80) {
+			flags |= OVERFLOW_MASK;
 		}
+		return flags;
+	}
 
-		if (oper8 == 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+	// Decrementa un valor de 8 bits modificando los flags oportunos
+	private int dec8(int oper8) {
+		oper8 = (oper8 - 1) & 0xff;
+
+		if (lazyFlags) {
+			lazyRes = oper8;
+			sz5h3pnFlags = LAZY_DEC;
+		} else {
+			sz5h3pnFlags = dec8Flags(oper8);
 		}
 
 		flagQ = true;
 		return oper8;
 	}
 
+	private static int dec8Flags(int res) {
+		int flags = sz53n_subTable[res];
+
+		if ((res & 0x0f) == 0x0f) {
+			flags |= HALFCARRY_MASK;
+		}
+
+		if (res == 0x7f) {
+			flags |= OVERFLOW_MASK;
+		}
+		return flags;
+	}
+
 	// Suma de 8 bits afectando a los flags
 	private void add(int oper8) {
 		int res = regA + oper8;
 
 		carryFlag = res > 0xff;
 		res &= 0xff;
-		sz5h3pnFlags = sz53n_addTable[res];
+		if (lazyFlags) {
+			lazy(LAZY_ADD, oper8, res);
+		} else {
+			sz5h3pnFlags = addFlags(regA, oper8, res);
+		}
+
+		regA = res;
+		flagQ = true;
+	}
+
+	private static int addFlags(int regA, int oper8, int res) {
+		int flags = sz53n_addTable[res];
 
 		/* El módulo 16 del resultado será menor que el módulo 16 del registro A
 		 * si ha habido HalfCarry. Sucede lo mismo para todos los métodos suma
 		 * SIN carry */
 		if ((res & 0x0f) < (regA & 0x0f)) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			flags |= HALFCARRY_MASK;
 		}
 
 		if (((regA ^ ~oper8) & (regA ^ res)) > 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+			flags |= OVERFLOW_MASK;
 		}
-
-		regA = res;
-		flagQ = true;
+		return flags;
 	}
 
 	// Suma con acarreo de 8 bits
@@ -1169,18 +1436,27 @@ public class Z180 implements CPU {
 
 		carryFlag = res > 0xff;
 		res &= 0xff;
-		sz5h3pnFlags = sz53n_addTable[res];
+		if (lazyFlags) {
+			lazy(LAZY_ADC, oper8, res);
+		} else {
+			sz5h3pnFlags = adcFlags(regA, oper8, res);
+		}
+
+		regA = res;
+		flagQ = true;
+	}
+
+	private static int adcFlags(int regA, int oper8, int res) {
+		int flags = sz53n_addTable[res];
 
 		if (((regA ^ oper8 ^ res) & 0x10) != 0) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			flags |= HALFCARRY_MASK;
 		}
 
 		if (((regA ^ ~oper8) & (regA ^ res)) > 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+			flags |= OVERFLOW_MASK;
 		}
-
-		regA = res;
-		flagQ = true;
+		return flags;
 	}
 
 	// Suma dos operandos de 16 bits sin carry afectando a los flags
@@ -1188,7 +1464,7 @@ public class Z180 implements CPU {
 		oper16 += reg16;
 
 		carryFlag = oper16 > 0xffff;
-		sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | ((oper16 >>> 8) & FLAG_53_MASK);
+		sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | ((oper16 >>> 8) & FLAG_53_MASK);
 		oper16 &= 0xffff;
 
 		if ((oper16 & 0x0fff) < (reg16 & 0x0fff)) {
@@ -1236,21 +1512,30 @@ public class Z180 implements CPU {
 
 		carryFlag = res < 0;
 		res &= 0xff;
-		sz5h3pnFlags = sz53n_subTable[res];
+		if (lazyFlags) {
+			lazy(LAZY_SUB, oper8, res);
+		} else {
+			sz5h3pnFlags = subFlags(regA, oper8, res);
+		}
+
+		regA = res;
+		flagQ = true;
+	}
+
+	private static int subFlags(int regA, int oper8, int res) {
+		int flags = sz53n_subTable[res];
 
 		/* El módulo 16 del resultado será mayor que el módulo 16 del registro A
 		 * si ha habido HalfCarry. Sucede lo mismo para todos los métodos resta
 		 * SIN carry, incluido cp */
 		if ((res & 0x0f) > (regA & 0x0f)) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			flags |= HALFCARRY_MASK;
 		}
 
 		if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+			flags |= OVERFLOW_MASK;
 		}
-
-		regA = res;
-		flagQ = true;
+		return flags;
 	}
 
 	// Resta con acarreo de 8 bits
@@ -1263,18 +1548,27 @@ public class Z180 implements CPU {
 
 		carryFlag = res < 0;
 		res &= 0xff;
-		sz5h3pnFlags = sz53n_subTable[res];
+		if (lazyFlags) {
+			lazy(LAZY_SBC, oper8, res);
+		} else {
+			sz5h3pnFlags = sbcFlags(regA, oper8, res);
+		}
+
+		regA = res;
+		flagQ = true;
+	}
+
+	private static int sbcFlags(int regA, int oper8, int res) {
+		int flags = sz53n_subTable[res];
 
 		if (((regA ^ oper8 ^ res) & 0x10) != 0) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			flags |= HALFCARRY_MASK;
 		}
 
 		if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+			flags |= OVERFLOW_MASK;
 		}
-
-		regA = res;
-		flagQ = true;
+		return flags;
 	}
 
 	// Resta con acarreo de 16 bits
@@ -1348,19 +1642,65 @@ public class Z180 implements CPU {
 		carryFlag = res < 0;
 		res &= 0xff;
 
-		sz5h3pnFlags = (sz53n_addTable[oper8] & FLAG_53_MASK)
+		if (lazyFlags) {
+			lazy(LAZY_CP, oper8, res);
+		} else {
+			sz5h3pnFlags = cpFlags(regA, oper8, res);
+		}
+
+		flagQ = true;
+	}
+
+	private static int cpFlags(int regA, int oper8, int res) {
+		int flags = (sz53n_addTable[oper8] & FLAG_53_MASK)
 			| // No necesito preservar H, pero está a 0 en la tabla de todas formas
 			(sz53n_subTable[res] & FLAG_SZHN_MASK);
 
 		if ((res & 0x0f) > (regA & 0x0f)) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			flags |= HALFCARRY_MASK;
 		}
 
 		if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+			flags |= OVERFLOW_MASK;
 		}
+		return flags;
+	}
 
-		flagQ = true;
+	// Record an 8-bit arithmetic operation, for flags() to evaluate
+	// if F is ever needed. A is still the value before the operation.
+	private void lazy(int op, int oper8, int res) {
+		lazyA = regA;
+		lazyOper = oper8;
+		lazyRes = res;
+		sz5h3pnFlags = op;
+	}
+
+	// SZ5H3PN flags, evaluating the last operation if it was
+	// recorded by lazy(). All reads of F must come through here.
+	private int flags() {
+		if (sz5h3pnFlags < 0) {
+			sz5h3pnFlags = evalFlags();
+		}
+		return sz5h3pnFlags;
+	}
+
+	private int evalFlags() {
+		switch (sz5h3pnFlags) {
+		case LAZY_ADD:
+			return addFlags(lazyA, lazyOper, lazyRes);
+		case LAZY_ADC:
+			return adcFlags(lazyA, lazyOper, lazyRes);
+		case LAZY_SUB:
+			return subFlags(lazyA, lazyOper, lazyRes);
+		case LAZY_SBC:
+			return sbcFlags(lazyA, lazyOper, lazyRes);
+		case LAZY_CP:
+			return cpFlags(lazyA, lazyOper, lazyRes);
+		case LAZY_INC:
+			return inc8Flags(lazyRes);
+		default:
+			return dec8Flags(lazyRes);
+		}
 	}
 
 	// DAA
@@ -1368,7 +1708,7 @@ public class Z180 implements CPU {
 		int suma = 0;
 		boolean carry = carryFlag;
 
-		if ((sz5h3pnFlags & HALFCARRY_MASK) != 0 || (regA & 0x0f) > 0x09) {
+		if ((flags() & HALFCARRY_MASK) != 0 || (regA & 0x0f) > 0x09) {
 			suma = 6;
 		}
 
@@ -1380,12 +1720,12 @@ public class Z180 implements CPU {
 			carry = true;
 		}
 
-		if ((sz5h3pnFlags & ADDSUB_MASK) != 0) {
+		if ((flags() & ADDSUB_MASK) != 0) {
 			sub(suma);
-			sz5h3pnFlags = (sz5h3pnFlags & HALFCARRY_MASK) | sz53pn_subTable[regA];
+			sz5h3pnFlags = (flags() & HALFCARRY_MASK) | sz53pn_subTable[regA];
 		} else {
 			add(suma);
-			sz5h3pnFlags = (sz5h3pnFlags & HALFCARRY_MASK) | sz53pn_addTable[regA];
+			sz5h3pnFlags = (flags() & HALFCARRY_MASK) | sz53pn_addTable[regA];
 		}
 
 		carryFlag = carry;
@@ -1418,7 +1758,7 @@ public class Z180 implements CPU {
 		decRegBC();
 		work8 += regA;
 
-		sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZ_MASK) | (work8 & BIT3_MASK);
+		sz5h3pnFlags = (flags() & FLAG_SZ_MASK) | (work8 & BIT3_MASK);
 
 		if ((work8 & ADDSUB_MASK) != 0) {
 			sz5h3pnFlags |= BIT5_MASK;
@@ -1440,7 +1780,7 @@ public class Z180 implements CPU {
 		decRegBC();
 		work8 += regA;
 
-		sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZ_MASK) | (work8 & BIT3_MASK);
+		sz5h3pnFlags = (flags() & FLAG_SZ_MASK) | (work8 & BIT3_MASK);
 
 		if ((work8 & ADDSUB_MASK) != 0) {
 			sz5h3pnFlags |= BIT5_MASK;
@@ -1462,8 +1802,8 @@ public class Z180 implements CPU {
 		ticks += 3;
 		incRegHL();
 		decRegBC();
-		memHL = regA - memHL - ((sz5h3pnFlags & HALFCARRY_MASK) != 0 ? 1 : 0);
-		sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHN_MASK) | (memHL & BIT3_MASK);
+		memHL = regA - memHL - ((flags() & HALFCARRY_MASK) != 0 ? 1 : 0);
+		sz5h3pnFlags = (flags() & FLAG_SZHN_MASK) | (memHL & BIT3_MASK);
 
 		if ((memHL & ADDSUB_MASK) != 0) {
 			sz5h3pnFlags |= BIT5_MASK;
@@ -1487,8 +1827,8 @@ public class Z180 implements CPU {
 		ticks += 3;
 		decRegHL();
 		decRegBC();
-		memHL = regA - memHL - ((sz5h3pnFlags & HALFCARRY_MASK) != 0 ? 1 : 0);
-		sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHN_MASK) | (memHL & BIT3_MASK);
+		memHL = regA - memHL - ((flags() & HALFCARRY_MASK) != 0 ? 1 : 0);
+		sz5h3pnFlags = (flags() & FLAG_SZHN_MASK) | (memHL & BIT3_MASK);
 
 		if ((memHL & ADDSUB_MASK) != 0) {
 			sz5h3pnFlags |= BIT5_MASK;
@@ -1672,12 +2012,19 @@ public class Z180 implements CPU {
 	}
 
 	public int phyAddr(int vaddr) {
+		return vaddr + mmu[(vaddr >> 12) & 0xf];
+	}
+
+	// Rebuild the page table after CBR, BBR, or CBAR changes.
+	private void setMMU() {
 		// TODO: is this "cbr + vaddr"
 		// or "cbr + (vaddr - com1)" ???
-		int pga = (vaddr & 0xf000);
-		if (pga >= com1) return cbr + vaddr;
-		if (pga >= bnk1) return bbr + vaddr;
-		return vaddr;
+		for (int pg = 0; pg < 16; ++pg) {
+			int pga = pg << 12;
+			if (pga >= com1) mmu[pg] = cbr;
+			else if (pga >= bnk1) mmu[pg] = bbr;
+			else mmu[pg] = 0;
+		}
 	}
 
 	private void clrTIF(int tif) {
@@ -1696,19 +2043,38 @@ public class Z180 implements CPU {
 		// TODO: ? if ((port & 0xc0) != ioa) ?
 		if ((port & ~0x3f) != ioa) {
 			ticks += iw;	// assume only for external I/O
+			if (ports != null) {
+				long t0 = System.nanoTime();
+				computerImpl.outPort(port, val);
+				ports.write(port, System.nanoTime() - t0);
+				return;
+			}
 			computerImpl.outPort(port, val);
 			return;
 		}
 		port &= 0x3f;	// unnesseccary?
 		if (addPorts[port] != 0) {
 			v = (addPorts[port] & 0xff) - 1;
+			if (ports != null) {
+				long t0 = System.nanoTime();
+				addDevs[v].outPort(port, val);
+				ports.write(ioa | port, System.nanoTime() - t0);
+				return;
+			}
 			addDevs[v].outPort(port, val);
 			return; // TODO: don't update ccr[]?
 		}
+		if (ports != null) {
+			ports.write(ioa | port, -1);
+		}
+		if (port >= 0x0c && port <= 0x18) {
+			syncTimers();
+		}
 		// TODO: notify listeners...?
 		switch (port) {
 		case 0x10: // TCR
 			ccr[port] = (byte)((ccr[port] & 0b11000000) | (val & 0b00111111));
+			scheduleTimers();
 			if ((val & 0b00100000) == 0) {	// TIE1
 				lowerIntnlIntr(3);
 			} else if ((val & 0b10000000) != 0) {	// TIF1
@@ -1728,7 +2094,6 @@ public class Z180 implements CPU {
 			ccr[port] = (byte)v;
 			return;
 		case 0x30: // DSTAT
-			if ((val & 0b00010000) != 0) return; // DWE0
 			v = (ccr[port] & 0b11000001) | (val & 0b00001100);
 			if ((val & 0b00010000) == 0) { // DWE0
 				v &= 0b10111111;
@@ -1756,6 +2121,11 @@ public class Z180 implements CPU {
 		}
 		ccr[port] = (byte)val;
 		switch (port) {
+		case 0x0c: case 0x0d: case 0x0e: case 0x0f:	// TMDR0, RLDR0
+		case 0x14: case 0x15: case 0x16: case 0x17:	// TMDR1, RLDR1
+		case 0x18:	// FRC
+			scheduleTimers();
+			break;
 		case 0x1e: // CMR
 		case 0x1f: // CCR
 			if (!z180s) break;
@@ -1775,13 +2145,16 @@ public class Z180 implements CPU {
 			break;
 		case 0x38:	// CBR
 			cbr = val << 12;
+			setMMU();
 			break;
 		case 0x39:	// BBR
 			bbr = val << 12;
+			setMMU();
 			break;
 		case 0x3a:	// CBAR
 			com1 = (val & 0xf0) << 8;
 			bnk1 = (val & 0x0f) << 12;
+			setMMU();
 			break;
 		case 0x3f:	// BBR
 			ioa = val & 0xc0;
@@ -1794,14 +2167,32 @@ public class Z180 implements CPU {
 		// TODO: ? if ((port & 0xc0) != ioa) ?
 		if ((port & ~0x3f) != ioa) {
 			ticks += iw;	// assume only for external I/O
+			if (ports != null) {
+				long t0 = System.nanoTime();
+				int val = computerImpl.inPort(port);
+				ports.read(port, System.nanoTime() - t0);
+				return val;
+			}
 			return computerImpl.inPort(port);
 		}
 		port &= 0x3f;	// unnesseccary?
 		if (addPorts[port] != 0) {
 			// TODO: don't update ccr[]?
 			int v = (addPorts[port] & 0xff) - 1;
+			if (ports != null) {
+				long t0 = System.nanoTime();
+				int val = addDevs[v].inPort(port);
+				ports.read(ioa | port, System.nanoTime() - t0);
+				return val;
+			}
 			return addDevs[v].inPort(port);
 		}
+		if (ports != null) {
+			ports.read(ioa | port, -1);
+		}
+		if (port >= 0x0c && port <= 0x18) {
+			syncTimers();
+		}
 		int val = ccr[port] & 0xff;
 		// TODO: notify listeners...?
 		switch (port) {
@@ -1820,10 +2211,13 @@ public class Z180 implements CPU {
 		return val;
 	}
 
-	// *ALL* memory reads come through here...
+	// *ALL* memory reads come through here... (except fetch8())
 	private int peek8(int address) {
 		int paddr = phyAddr(address);
-		int val = computerImpl.peek8(paddr);
+		if (heat != null) {
+			++heat.read[(paddr >> 8) & 0xfff];
+		}
+		int val = memRead(paddr);
 		ticks += 3 + mw;
 		return val;
 	}
@@ -1835,7 +2229,12 @@ public class Z180 implements CPU {
 			val = computerImpl.intrResp(modeINT);
 			ticks += 3;
 		} else {
-			val = peek8(regPC);
+			int paddr = phyAddr(regPC);
+			if (heat != null) {
+				++heat.fetch[(paddr >> 8) & 0xfff];
+			}
+			val = memRead(paddr);
+			ticks += 3 + mw;
 			regPC = (regPC + 1) & 0xffff;
 		}
 		return val;
@@ -1863,7 +2262,10 @@ public class Z180 implements CPU {
 	// *ALL* memory writes come through here...
 	private void poke8(int address, int value) {
 		int paddr = phyAddr(address);
-		computerImpl.poke8(paddr, value);
+		if (heat != null) {
+			++heat.write[(paddr >> 8) & 0xfff];
+		}
+		memWrite(paddr, value);
 		ticks += 3 + mw;
 	}
 
@@ -1886,72 +2288,351 @@ public class Z180 implements CPU {
 		ccr[reg + 2] = (byte)(pa >> 16);
 	}
 
-	// Only memory-to-memory (ch 0) supported
-	// returns 'true' if DMA cycle was performed
-	private boolean dma() {
-		if ((ccr[0x30] & 0b01000001) != 0b01000001) { // not DE0=1 && DME=1
-			return false;
+	// DMA request from DREQ0/DREQ1, level or edge sensed per DCNTL DMS0/DMS1
+	private boolean dmaDREQ(int ch) {
+		int lines = intLines();
+		if (ch == 0) {
+			return (lines & ((ccr[0x32] & 0b00000100) != 0 ?
+					DREQ0_EDGE : DREQ0_LINE)) != 0;
 		}
-		// for cycle-stealing, need to alternate between CPU and DMA...
-		int ccr31 = ccr[0x31] & 0xff;
-		if ((ccr31 & 0b00110000) == 0b00110000 ||
-				(ccr31 & 0b00001100) == 0b00001100) {
-			// I/O DMA not supported...
-			System.err.format("Z180 DMA: unsupported mode\n");
-			activeDMA = false;
+		return (lines & ((ccr[0x32] & 0b00001000) != 0 ?
+				DREQ1_EDGE : DREQ1_LINE)) != 0;
+	}
+
+	// DREQ was used for a transfer
+	private void dmaAck(int ch) {
+		setIntLines(ch == 0 ? DREQ0_EDGE : DREQ1_EDGE, false);
+	}
+
+	// ASCI status (STAT0/STAT1), for DMA requests from RDRF/TDRE
+	private int asciStat(int port) {
+		if (addPorts[port] != 0) {
+			int v = (addPorts[port] & 0xff) - 1;
+			return addDevs[v].inPort(port);
+		}
+		return ccr[port] & 0xff;
+	}
+
+	// true if channel 0 has a request, given DMODE 'sm' and 'dm'
+	private boolean dmaReq0(int sm, int dm) {
+		if (sm != 3 && dm != 3) {
+			return true;	// memory-to-memory
+		}
+		// SAR17-16 or DAR17-16 select the request
+		int sel = (sm == 3 ? ccr[0x22] : ccr[0x25]) & 0b00000011;
+		switch (sel) {
+		case 0:
+			return dmaDREQ(0);
+		case 1:	// RDR0 or TDR0
+			return (asciStat(0x04) & (sm == 3 ? 0x80 : 0x02)) != 0;
+		case 2:	// RDR1 or TDR1
+			return (asciStat(0x05) & (sm == 3 ? 0x80 : 0x02)) != 0;
+		}
+		return false;
+	}
+
+	// next DMA address for mode 'm': 0 = incr, 1 = decr, else fixed
+	private int dmaStep(int a, int m) {
+		if (m == 0) {
+			return a + 1;
+		} else if (m == 1) {
+			return a - 1;
+		}
+		return a;
+	}
+
+	private int dmaIn(int port) {
+		ticks += 4;
+		return inPort(port & 0xffff);
+	}
+
+	private void dmaOut(int port, int val) {
+		ticks += 4;
+		outPort(port & 0xffff, val);
+	}
+
+	// Device for block transfers on 'port', or null
+	private BlockIO blockIO(int port) {
+		Object dev = computerImpl;
+		if ((port & ~0x3f) == ioa) {
+			int v = addPorts[port & 0x3f] & 0xff;
+			dev = v != 0 ? addDevs[v - 1] : null;
+		}
+		if (dev instanceof BlockIO) {
+			return (BlockIO)dev;
+		}
+		return null;
+	}
+
+	// Account for the transfer just done, since 't0', as execute() and
+	// execOne() would between two transfers. Returns start of the next.
+	private int dmaNext(int t0) {
+		int it = ticks - t0;
+		tickFRC(it);
+		rcc -= it;
+		t0 = ticks;
+		if (rw > 0 && rcc <= 0) {
+			rcc = rc;
+			ticks += rw;	// do a REF cycle
+		}
+		return t0;
+	}
+
+	// Finish several transfers in one execute(), which will account for
+	// all of 'ticks' but the timers and REF counter have already seen all
+	// but the last transfer (see repeatBlock()).
+	private void dmaDone(int t0) {
+		int it = ticks - t0;
+		tickFRC(it);
+		clock -= ticks;
+		rcc += ticks - it;
+	}
+
+	// Transfer up to 'bc' bytes between I/O 'port' (BlockIO 'dev') and
+	// memory at 'ma' (mode 'mm'), as a run of DMA transfers of 'cost'
+	// cycles each. Returns number of bytes transferred.
+	private int dmaBlock(BlockIO dev, int port, boolean in,
+			int ma, int mm, int bc, int cost) {
+		int n = (dmaBudget - ticks + cost - 1) / cost;
+		if (n < 1) {
+			n = 1;
+		} else if (n > bc) {
+			n = bc;
+		}
+		int sp = port;	// for PortStats
+		if ((port & ~0x3f) == ioa) {
+			port &= 0x3f;
+		} else {
+			cost += iw;
+		}
+		if (dmaBuf == null) {
+			dmaBuf = new byte[65536];
+		}
+		long ns = 0;
+		if (in) {
+			if (ports != null) {
+				ns = System.nanoTime();
+			}
+			n = dev.inBlock(port, dmaBuf, 0, n);
+			if (ports != null) {
+				ns = System.nanoTime() - ns;
+			}
+			for (int x = 0; x < n; ++x) {
+				memWrite(ma & 0xfffff, dmaBuf[x] & 0xff);
+				ma = dmaStep(ma, mm);
+			}
+		} else {
+			for (int x = 0; x < n; ++x) {
+				dmaBuf[x] = (byte)memRead(ma & 0xfffff);
+				ma = dmaStep(ma, mm);
+			}
+			if (ports != null) {
+				ns = System.nanoTime();
+			}
+			n = dev.outBlock(port, dmaBuf, 0, n);
+			if (ports != null) {
+				ns = System.nanoTime() - ns;
+			}
+		}
+		if (ports != null && n > 0) {
+			ports.transfer(sp, n, in, ns);
+		}
+		if (n <= 0) {
+			return 0;
+		}
+		ticks += cost;
+		int t0 = 0;
+		for (int x = 1; x < n; ++x) {
+			t0 = dmaNext(t0);
+			ticks += cost;
+		}
+		dmaDone(t0);
+		return n;
+	}
+
+	// DMA channel 'ch' (0 or 1) has finished
+	private void dmaEnd(int ch) {
+		activeDMA = false;
+		// TODO: also DME=0?
+		if (ch == 0) {
 			ccr[0x30] &= ~0b01000000; // DE0=0
 			if ((ccr[0x30] & 0b00000100) != 0) { // DIE0?
 				raiseIntnlIntr(4);
 			}
+		} else {
+			ccr[0x30] &= ~0b10000000; // DE1=0
+			if ((ccr[0x30] & 0b00001000) != 0) { // DIE1?
+				raiseIntnlIntr(5);
+			}
+		}
+	}
+
+	// true if a DMA channel is enabled, i.e. DMA could occur
+	private boolean dmaEnabled() {
+		int v = ccr[0x30] & 0xff;
+		return (v & 0b00000001) != 0 && (v & 0b11000000) != 0; // DME=1 && (DE0=1 || DE1=1)
+	}
+
+	// returns 'true' if DMA cycle was performed
+	private boolean dma() {
+		if (!dmaEnabled()) {
+			return false;
+		}
+		// for cycle-stealing, alternate between CPU and DMA...
+		if (activeDMA) {
+			activeDMA = false;
 			return false;
 		}
+		if ((ccr[0x30] & 0b01000000) != 0 && dma0()) { // DE0
+			return true;
+		}
+		if ((ccr[0x30] & 0b10000000) != 0) { // DE1
+			return dma1();
+		}
+		return false;
+	}
+
+	// Channel 0: memory or I/O, to memory or I/O, burst or cycle-steal.
+	private boolean dma0() {
+		int ccr31 = ccr[0x31] & 0xff;
+		int dm = (ccr31 >> 4) & 0b11;
+		int sm = (ccr31 >> 2) & 0b11;
 		boolean burst = ((ccr31 & 0b00000010) != 0);
-		if (!burst) {
-			activeDMA = !activeDMA;
-			if (!activeDMA) { // was true...
-				return false;
-			}
+		int bc = ((ccr[0x27] & 0xff) << 8) | (ccr[0x26] & 0xff);
+		if (bc == 0) {
+			dmaEnd(0);
+			return false;
+		}
+		if (!dmaReq0(sm, dm)) {
+			return false;
 		}
+		boolean dreq = (sm == 3 || dm == 3) &&
+			((sm == 3 ? ccr[0x22] : ccr[0x25]) & 0b00000011) == 0;
 		int sa = getDmaa(0x20);
 		int da = getDmaa(0x23);
-		int bc = ((ccr[0x27] & 0xff) << 8) | (ccr[0x26] & 0xff);
-		boolean ret = false;
-		if (bc != 0) {
-			int d = computerImpl.peek8(sa);
-			ticks += 3;
-			computerImpl.poke8(da, d);
-			ticks += 3;
-			if ((ccr31 & 0b00001000) == 0) { // SM1=0, +/-
-				if ((ccr31 & 0b00000100) == 0) { // SM0=0, +
-					++sa;
-				} else {
-					--sa;
+		BlockIO dev = null;
+		if (dmaBudget > 0 && (sm == 3) != (dm == 3)) {
+			dev = blockIO(sm == 3 ? sa : da);
+		}
+		if (dev != null) {
+			int n;
+			if (sm == 3) {
+				n = dmaBlock(dev, sa & 0xffff, true, da, dm, bc, 7);
+				for (int x = 0; x < n; ++x) {
+					da = dmaStep(da, dm);
 				}
-				putDmaa(0x20, sa);
+			} else {
+				n = dmaBlock(dev, da & 0xffff, false, sa, sm, bc, 7);
+				for (int x = 0; x < n; ++x) {
+					sa = dmaStep(sa, sm);
+				}
+			}
+			if (n == 0) {
+				return false;
+			}
+			bc -= n;
+			if (dreq) {
+				dmaAck(0);
 			}
-			if ((ccr31 & 0b00100000) == 0) { // DM1=0, +/-
-				if ((ccr31 & 0b00010000) == 0) { // DM0=0, +
-					++da;
+		} else {
+			int t0 = 0;	// start of the current transfer
+			for (;;) {
+				if (dreq) {
+					dmaAck(0);
+				}
+				int d;
+				if (sm == 3) {
+					d = dmaIn(sa);
+				} else {
+					d = memRead(sa & 0xfffff);
+					ticks += 3;
+				}
+				if (dm == 3) {
+					dmaOut(da, d);
 				} else {
-					--da;
+					memWrite(da & 0xfffff, d);
+					ticks += 3;
+				}
+				sa = dmaStep(sa, sm);
+				da = dmaStep(da, dm);
+				--bc;
+				if (!burst || dmaBudget <= 0) {
+					break;
 				}
-				putDmaa(0x23, da);
+				// burst: continue as execute()/execOne() would
+				if (bc == 0 || stopRun || (intLines() & NMI_LINE) != 0 ||
+						ticks >= dmaBudget || !dmaReq0(sm, dm)) {
+					dmaDone(t0);
+					break;
+				}
+				t0 = dmaNext(t0);
 			}
-			--bc;
-			ccr[0x27] = (byte)(bc >> 8);
-			ccr[0x26] = (byte)bc;
-			ret = true;
 		}
+		if (sm < 2) {	// memory +/-
+			putDmaa(0x20, sa);
+		}
+		if (dm < 2) {	// memory +/-
+			putDmaa(0x23, da);
+		}
+		ccr[0x27] = (byte)(bc >> 8);
+		ccr[0x26] = (byte)bc;
 		if (bc == 0) {
 			// terminate operation...
-			activeDMA = false;
-			// TODO: also DME=0?
-			ccr[0x30] &= ~0b01000000; // DE0=0
-			if ((ccr[0x30] & 0b00000100) != 0) { // DIE0?
-				raiseIntnlIntr(4);
+			dmaEnd(0);
+		} else if (!burst) {
+			activeDMA = true;
+		}
+		return true;
+	}
+
+	// Channel 1: memory to/from I/O, cycle-steal paced by DREQ1.
+	private boolean dma1() {
+		int bc = ((ccr[0x2f] & 0xff) << 8) | (ccr[0x2e] & 0xff);
+		if (bc == 0) {
+			dmaEnd(1);
+			return false;
+		}
+		if (!dmaDREQ(1)) {
+			return false;
+		}
+		int dim = ccr[0x32] & 0b00000011;
+		boolean in = (dim & 0b10) != 0;	// I/O to memory
+		int mm = dim & 0b01;	// MAR1 +/-
+		int ma = getDmaa(0x28);
+		int ia = ((ccr[0x2c] & 0xff) << 8) | (ccr[0x2b] & 0xff);
+		BlockIO dev = null;
+		if (dmaBudget > 0) {
+			dev = blockIO(ia);
+		}
+		if (dev != null) {
+			int n = dmaBlock(dev, ia, in, ma, mm, bc, 7);
+			if (n == 0) {
+				return false;
+			}
+			for (int x = 0; x < n; ++x) {
+				ma = dmaStep(ma, mm);
+			}
+			bc -= n;
+		} else {
+			if (in) {
+				memWrite(ma & 0xfffff, dmaIn(ia));
+			} else {
+				dmaOut(ia, memRead(ma & 0xfffff));
 			}
+			ticks += 3;
+			ma = dmaStep(ma, mm);
+			--bc;
 		}
-		return ret;
+		dmaAck(1);
+		putDmaa(0x28, ma);
+		ccr[0x2f] = (byte)(bc >> 8);
+		ccr[0x2e] = (byte)bc;
+		if (bc == 0) {
+			dmaEnd(1);
+		} else {
+			activeDMA = true;
+		}
+		return true;
 	}
 
 	private void trap(int nth, int op, int more) {
@@ -1964,7 +2645,7 @@ public class Z180 implements CPU {
 			while (n > 0) {
 				pc = (pc - 1) & 0xffff;
 				va = phyAddr(pc);
-				int b = computerImpl.peek8(va);
+				int b = memRead(va);
 				o = Integer.toHexString(b) + ' ' + o;
 				--n;
 			}
@@ -2077,19 +2758,41 @@ public class Z180 implements CPU {
 		Arrays.fill(breakpointAt, false);
 	}
 
-	public String specialCycle() { return spcl; }
+	public String specialCycle() { return SpecialCycle.name(spcl); }
+	public int specialCycleCode() { return spcl; }
+
+	// The FRC counts down every 10 cycles, and the PRTs (if enabled)
+	// every time the FRC becomes odd. Rather than do that after each
+	// instruction, the registers are only brought up to date when
+	// read (or written), or when a PRT would set its TIF.
 
-	// already know we're enabled...
-	private boolean dcrPRT(int reg) {
-		boolean ret = false;
-		if (ccr[reg] == 0 && ccr[reg + 1] == 0) {
-			ccr[reg] = ccr[reg + 2];
-			ccr[reg + 1] = ccr[reg + 3];
-			return ret;
+	// Advance PRT 'reg' by 'n' counts, setting TIF if it reaches 0.
+	// A count at 0 reloads from RLDR instead of decrementing.
+	private void advPRT(int reg, long n) {
+		int v = (ccr[reg] & 0xff) | ((ccr[reg + 1] & 0xff) << 8);
+		int rld = (ccr[reg + 2] & 0xff) | ((ccr[reg + 3] & 0xff) << 8);
+		boolean fire = false;
+		if (v > 0 && n < v) {
+			v -= n;
+		} else {
+			if (v > 0) {
+				n -= v;
+				fire = true;
+			}
+			// now at 0, cycle is reload then 'rld' decrements
+			if (rld > 0 && n > 0) {
+				if (n > rld) {
+					fire = true;
+				}
+				n %= rld + 1;
+				v = n > 0 ? rld - (int)n + 1 : 0;
+			} else {
+				v = 0;
+			}
 		}
-		--ccr[reg];
-		if (ccr[reg] == 0 && ccr[reg + 1] == 0) {
-			ret = true;
+		ccr[reg] = (byte)v;
+		ccr[reg + 1] = (byte)(v >> 8);
+		if (fire) {
 			int tif = 0b01000000;	// TIF0
 			int tie = 0b00010000;	// TIE0
 			int irq = 2;
@@ -2102,37 +2805,430 @@ public class Z180 implements CPU {
 			if ((ccr[0x10] & tie) != 0) {
 				raiseIntnlIntr(irq);
 			}
-		} else if (ccr[reg] == -1) {
-			--ccr[reg + 1];
 		}
-		return ret;
 	}
 
-	private void doPRT() {
+	// Bring FRC and PRTs up to the current clock.
+	private void syncTimers() {
+		long d = clock - timerSync;
+		if (d <= 0) {
+			return;
+		}
+		timerSync = clock;
+		d += preFRC;
+		preFRC = (int)(d % 10);
+		long n = d / 10;
+		if (n == 0) {
+			return;
+		}
+		int frc = ccr[0x18] & 0xff;
+		ccr[0x18] = (byte)(frc - n);
+		// PRTs count when the FRC becomes odd
+		long m = (frc & 1) == 0 ? (n + 1) / 2 : n / 2;
+		if (m > 0) {
+			if ((ccr[0x10] & 0b00000001) != 0) { // PRT0
+				advPRT(0x0c, m);
+			}
+			if ((ccr[0x10] & 0b00000010) != 0) { // PRT1
+				advPRT(0x14, m);
+			}
+		}
+		if (clock >= timerNext) {
+			scheduleTimers();
+		}
+	}
+
+	// PRT counts until 'reg' sets TIF, or -1 if never
+	private int prtFire(int reg) {
+		int v = (ccr[reg] & 0xff) | ((ccr[reg + 1] & 0xff) << 8);
+		if (v > 0) {
+			return v;
+		}
+		int rld = (ccr[reg + 2] & 0xff) | ((ccr[reg + 3] & 0xff) << 8);
+		return rld > 0 ? rld + 1 : -1;
+	}
+
+	// Compute timerNext, must be synced.
+	private void scheduleTimers() {
+		int m = -1;
 		if ((ccr[0x10] & 0b00000001) != 0) { // PRT0
-			dcrPRT(0x0c);
+			m = prtFire(0x0c);
 		}
 		if ((ccr[0x10] & 0b00000010) != 0) { // PRT1
-			dcrPRT(0x14);
+			int m1 = prtFire(0x14);
+			if (m < 0 || (m1 >= 0 && m1 < m)) {
+				m = m1;
+			}
+		}
+		if (m < 0) {
+			timerNext = Long.MAX_VALUE;
+			return;
 		}
+		// FRC count on which the m'th PRT count happens
+		long n = (ccr[0x18] & 1) == 0 ? 2L * m - 1 : 2L * m;
+		timerNext = timerSync + n * 10 - preFRC;
 	}
 
 	public final int execute() {
 		int t = execOne();
 		if (t < 0) {
-			preFRC += -t;
+			tickFRC(-t);
 		} else {
-			preFRC += t;
+			tickFRC(t);
 		}
-		while (preFRC >= 10) {
-			--ccr[0x18];
-			preFRC -= 10;
-			// TODO: try to implement as real-time?
-			if ((ccr[0x10] & 0b00000011) != 0 && (ccr[0x18] & 1) != 0) {
-				doPRT();
+		return t;
+	}
+
+	private void tickFRC(int t) {
+		clock += t;
+		if (clock >= timerNext) {
+			syncTimers();
+		}
+	}
+
+	// Fast-forward through HALT/SLP, up to 'budget' cycles, as long as
+	// no interrupt (or DMA) could occur. Each skipped cycle is one (HALT)
+	// or two (SLP) M1 cycles, plus any REF cycles. Returns 0 if not possible.
+	private int haltSkip(int budget) {
+		if ((intLines() & NMI_LINE) != 0 || pendingEI ||
+				breakpointAt[regPC] || dmaEnabled()) {
+			return 0;
+		}
+		if (ffIFF1) {
+			if (intrPending()) {
+				return 0;
+			}
+			// stop where a PRT would interrupt
+			if (timerNext - clock < budget) {
+				budget = (int)(timerNext - clock);
 			}
 		}
-		return t;
+		if (budget <= 0) {
+			return 0;
+		}
+		int cost = sleeping ? 8 + 2 * mw : 3 + mw;
+		int cy = 0;
+		int n = 0;
+		int t = ticks;
+		if (rw == 0) {
+			n = (budget + cost - 1) / cost;
+			cy = n * cost;
+			rcc -= t + (n - 1) * cost;
+			t = cost;
+		}
+		// mimic the REF cycle accounting in execOne(), one M1 at a time
+		// until two REF cycles have been seen, then whole REF periods
+		int ref = -1;	// 'cy' at the last REF, 'm1' M1 cycles then
+		int m1 = 0;
+		while (cy < budget) {
+			rcc -= t;
+			t = cost;
+			boolean r = rcc <= 0;
+			if (r) {
+				rcc = rc;
+				t += rw;
+			}
+			cy += t;
+			++n;
+			if (r) {
+				if (ref >= 0) {
+					int len = cy - ref;
+					int k = (budget - cy) / len;
+					cy += k * len;
+					n += k * (n - m1);
+				}
+				ref = cy;
+				m1 = n;
+			}
+		}
+		ticks = t;
+		regR += sleeping ? 2 * n : n;
+		lastFlagQ = false;
+		tickFRC(cy);
+		return cy;
+	}
+
+	// When enabled, runFor() will complete repeating block instructions
+	// (LDIR, LDDR, CPIR, CPDR) in a single execute(), as long as nothing
+	// could intervene between iterations. Results (cycles, flags, R, MEMPTR)
+	// are identical to executing each iteration separately.
+	public void setBlockBulk(boolean bulk) { blockBulk = bulk; }
+
+	// When enabled, runFor() will complete burst-mode DMA in a single
+	// execute() (one "DMA" special cycle), stopping only for NMI, when
+	// the request goes away, or when the runFor() budget is used up.
+	// Cycles, REF cycles and timers are the same as for separate transfers.
+	// Also, a memory<->I/O transfer (either channel) to a device that
+	// implements BlockIO is done as one block, as far as the device
+	// allows. For cycle-steal mode, this means the CPU instructions that
+	// would have run between transfers run after the block instead; a
+	// device opts in to that by implementing BlockIO. Memory-to-memory
+	// cycle-steal transfers stay one per step, interleaved exactly.
+	public void setDmaBulk(boolean bulk) { dmaBulk = bulk; }
+
+	// Continue a repeating LDIR/LDDR/CPIR/CPDR, whose first iteration
+	// has already been done (and PC rewound). Each iteration is what
+	// execute()/execOne() would have done: update timers, REF cycle,
+	// re-fetch ED xx (2 M1 cycles), then the operation. Stops (leaving
+	// PC on the instruction) if an interrupt or DMA could occur, at a
+	// breakpoint, when execDone() is wanted after each instruction, if
+	// the instruction overwrote itself, or when the runFor() budget is
+	// used up.
+	private void repeatBlock() {
+		int pc = regPC;
+		int it = ticks;	// cycles in the current iteration
+		boolean more = true;
+		boolean smc = overwrote(pc);
+		for (;;) {
+			tickFRC(it);
+			pendingEI = false;
+			if (!more || smc || stopRun || ticks >= blockBudget ||
+					breakpointAt[pc] || execDone ||
+					(intLines() & NMI_LINE) != 0 ||
+					intrPending() ||
+					dmaEnabled()) {
+				break;
+			}
+			lastFlagQ = flagQ;
+			flagQ = false;
+			int t0 = ticks;
+			rcc -= it;
+			if (rw > 0 && rcc <= 0) {
+				rcc = rc;
+				ticks += rw;
+			}
+			regR += 2;
+			ticks += 2 * (3 + mw);
+			switch (opCode) {
+			case 0xB0:	// LDIR
+				ldi();
+				smc = overwrote(pc);
+				more = (flags() & PARITY_MASK) == PARITY_MASK;
+				break;
+			case 0xB8:	// LDDR
+				ldd();
+				smc = overwrote(pc);
+				more = (flags() & PARITY_MASK) == PARITY_MASK;
+				break;
+			case 0xB1:	// CPIR
+				cpi();
+				more = (flags() & PARITY_MASK) == PARITY_MASK
+					&& (flags() & ZERO_MASK) == 0;
+				break;
+			case 0xB9:	// CPDR
+				cpd();
+				more = (flags() & PARITY_MASK) == PARITY_MASK
+					&& (flags() & ZERO_MASK) == 0;
+				break;
+			}
+			if (more) {
+				memptr = pc + 1;
+				ticks += 2;
+			} else {
+				regPC = (pc + 2) & 0xffff;
+			}
+			it = ticks - t0;
+		}
+		// execute() and execOne() will account for all of 'ticks' as
+		// one instruction, but the timers and REF counter have already
+		// seen all but the last iteration...
+		clock -= ticks;
+		rcc += ticks - it;
+	}
+
+	// true if the last LDI/LDD of LDIR/LDDR wrote one of
+	// the two opcode bytes at 'pc'
+	private boolean overwrote(int pc) {
+		int de = getRegDE();
+		if (opCode == 0xB0) {
+			--de;
+		} else if (opCode == 0xB8) {
+			++de;
+		} else {
+			return false;
+		}
+		de = phyAddr(de & 0xffff);
+		return de == phyAddr(pc) || de == phyAddr((pc + 1) & 0xffff);
+	}
+
+	// true if execOne() would take a (maskable) interrupt
+	private boolean intrPending() {
+		if (!ffIFF1 || pendingEI) {
+			return false;
+		}
+		int ccr34 = ccr[0x34] & 0xff;
+		int iim = (ccr34 >> 1) | 0b1111111111111100;
+		int lines = intLines();
+		return ((lines & INT0_LINE) != 0 && (ccr34 & 0b00000001) != 0) ||
+			(lines & iim) != 0;
+	}
+
+	// When enabled, 8-bit arithmetic (ADD, ADC, SUB, SBC, CP, INC, DEC)
+	// only records its operands and result, and the flags are computed
+	// only if something reads them. Results are identical either way.
+	public void setLazyFlags(boolean lazy) {
+		flags();
+		lazyFlags = lazy;
+	}
+
+	public void setCycleListener(CycleListener lstn) { cycListener = lstn; }
+	public void setProfiler(Profiler prof) { this.prof = prof; }
+
+	// Access memory directly, instead of through the Computer,
+	// for pages mapped in 'pages'. null to use the Computer only.
+	public void setPageTable(PageTable pages) { pageTable = pages; }
+
+	private int memRead(int address) {
+		if (pageTable != null) {
+			return pageTable.peek8(address);
+		}
+		return computerImpl.peek8(address);
+	}
+
+	private void memWrite(int address, int value) {
+		if (pageTable != null) {
+			pageTable.poke8(address, value);
+		} else {
+			computerImpl.poke8(address, value);
+		}
+	}
+
+	public void stopRun() { stopRun = true; }
+	public int getRunCycles() { return runCy; }
+
+	// Execute instructions until at least 'tStates' clock cycles have
+	// been consumed, or stopRun() is called (e.g. from breakpoint()).
+	// Returns the number of cycles actually consumed. Special cycles
+	// are reported to the CycleListener, instead of a negative return.
+	public final int runFor(int tStates) {
+		if (prof != null) {
+			return runProfiled(tStates);
+		}
+		int cy = 0;
+		stopRun = false;
+		while (cy < tStates && !stopRun) {
+			runCy = cy;
+			if (halted) {
+				int t = haltSkip(tStates - cy);
+				if (t > 0) {
+					cy += t;
+					continue;
+				}
+			}
+			if (blockBulk) {
+				blockBudget = tStates - cy;
+			}
+			if (dmaBulk) {
+				dmaBudget = tStates - cy;
+			}
+			int t = execute();
+			if (t < 0) {
+				t = -t;
+				if (cycListener != null) {
+					cycListener.specialCycle(this, t);
+				}
+			}
+			cy += t;
+		}
+		blockBudget = 0;
+		dmaBudget = 0;
+		runCy = 0;
+		return cy;
+	}
+
+	// runFor() with a Profiler. Separate, so that runFor() itself
+	// pays nothing. No bulk block instructions here, so each repeat
+	// is counted.
+	private int runProfiled(int tStates) {
+		long[] count = prof.count;
+		long[] cycles = prof.cycles;
+		int mask = prof.mask;
+		CallGraph cg = prof.calls;
+		OpcodeMix mix = prof.mix;
+		heat = prof.heat;
+		ports = prof.ports;
+		int cy = 0;
+		stopRun = false;
+		while (cy < tStates && !stopRun) {
+			runCy = cy;
+			int pc = phyAddr(regPC) & mask;
+			if (halted) {
+				int t = haltSkip(tStates - cy);
+				if (t > 0) {
+					cycles[pc] += t;
+					if (cg != null) {
+						cg.tick(t);
+					}
+					cy += t;
+					continue;
+				}
+			}
+			if (dmaBulk) {
+				dmaBudget = tStates - cy;
+			}
+			boolean h = halted;
+			int sp = regSP;
+			int mi = -1;
+			boolean timed = false;
+			if (mix != null && !h) {
+				mi = mixIndex(regPC);
+				timed = mix.sample();
+			}
+			long t0 = timed ? System.nanoTime() : 0;
+			int t = execute();
+			long ns = timed ? System.nanoTime() - t0 : -1;
+			int op = opCode;
+			if (t < 0) {
+				t = -t;
+				op = CallGraph.INTR;
+				if (cycListener != null) {
+					cycListener.specialCycle(this, t);
+				}
+			} else if (!h) {
+				++count[pc];
+				if (mi >= 0) {
+					mix.add(mi, ns);
+				}
+			}
+			if (ports != null) {
+				ports.charge(t);
+			}
+			if (cg != null) {
+				cg.step(t, sp, regSP, op, phyAddr(regPC));
+			}
+			cycles[pc] += t;
+			cy += t;
+		}
+		dmaBudget = 0;
+		heat = null;
+		ports = null;
+		runCy = 0;
+		return cy;
+	}
+
+	// OpcodeMix index of the instruction at 'pc'
+	private int mixIndex(int pc) {
+		int op = memRead(phyAddr(pc));
+		int pre;
+		switch (op) {
+		case 0xcb:
+			pre = OpcodeMix.CB;
+			break;
+		case 0xed:
+			pre = OpcodeMix.ED;
+			break;
+		case 0xdd:
+		case 0xfd:
+			pre = op == 0xdd ? OpcodeMix.DD : OpcodeMix.FD;
+			if (memRead(phyAddr((pc + 1) & 0xffff)) == 0xcb) {
+				pre = op == 0xdd ? OpcodeMix.DDCB : OpcodeMix.FDCB;
+				pc += 2;	// skip displacement
+			}
+			break;
+		default:
+			return op;
+		}
+		return pre * 256 + memRead(phyAddr((pc + 1) & 0xffff));
 	}
 
 	private int execOne() {
@@ -2143,37 +3239,38 @@ public class Z180 implements CPU {
 			ticks += rw;	// do a REF cycle
 		}
 		// TODO: DMAC cycles...
-		if (activeNMI) {
-			activeNMI = false;
+		int lines = intLines();
+		if ((lines & NMI_LINE) != 0) {
+			setIntLines(NMI_LINE, false);
 			lastFlagQ = false;
 			nmi();
-			spcl = "NMI";
+			spcl = SpecialCycle.NMI;
 			return -ticks;
 		}
 		if (dma()) {
-			spcl = "DMA";
+			spcl = SpecialCycle.DMA;
 			return -ticks;
 		}
 		// TODO: where do internal interrups land?
 		int ccr34 = ccr[0x34] & 0xff;
 		int iim = (ccr34 >> 1) | 0b1111111111111100;
-		if (activeINT && (ccr34 & 0b00000001) != 0 && ffIFF1 && !pendingEI) {
+		int irqs = lines & iim;
+		if ((lines & INT0_LINE) != 0 && (ccr34 & 0b00000001) != 0 &&
+				ffIFF1 && !pendingEI) {
 			lastFlagQ = false;
 			interruption();
-			spcl = "INT0";
+			spcl = SpecialCycle.INT0;
 			if (!intrFetch) {
 				return -ticks;
 			}
-		} else if ((intLines & iim) != 0 && ffIFF1 && !pendingEI) {
-			// TODO: possible race here with lowerIntnlIntr()?
-			int irq = Integer.numberOfTrailingZeros(intLines & iim);
-			// irq<0 not possible...?
-			if (irq >= 0) {
-				lastFlagQ = false;
-				internalIntr(irq);
-				spcl = "INT" + Integer.toString(irq + 1);
-				return -ticks;
-			}
+		} else if (irqs != 0 && ffIFF1 && !pendingEI) {
+			// a single snapshot, so a source lowered meanwhile
+			// still gets its (already committed) acknowledge.
+			int irq = Integer.numberOfTrailingZeros(irqs);
+			lastFlagQ = false;
+			internalIntr(irq);
+			spcl = SpecialCycle.INT1 + irq;
+			return -ticks;
 		}
 
 		if (breakpointAt[regPC]) {
@@ -2189,7 +3286,7 @@ public class Z180 implements CPU {
 		// may have thrown TRAP... PC pushed and reset to 0000...
 		if (activeTRAP) {
 			activeTRAP = false;
-			spcl = "TRAP";
+			spcl = SpecialCycle.TRAP;
 			return -ticks;
 		}
 
@@ -2247,7 +3344,7 @@ public class Z180 implements CPU {
 				if (carryFlag) {
 					regA |= CARRY_MASK;
 				}
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
 				flagQ = true;
 				break;
 			}
@@ -2295,7 +3392,7 @@ public class Z180 implements CPU {
 				if (carryFlag) {
 					regA |= SIGN_MASK;
 				}
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
 				flagQ = true;
 				break;
 			}
@@ -2343,7 +3440,7 @@ public class Z180 implements CPU {
 				if (oldCarry) {
 					regA |= CARRY_MASK;
 				}
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
 				flagQ = true;
 				break;
 			}
@@ -2387,13 +3484,13 @@ public class Z180 implements CPU {
 				if (oldCarry) {
 					regA |= SIGN_MASK;
 				}
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
 				flagQ = true;
 				break;
 			}
 			case 0x20: {     /* JR NZ,e */
 				byte offset = (byte) fetch8();
-				if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & ZERO_MASK) == 0) {
 					ticks += 2;
 					regPC = memptr = (regPC + offset) & 0xffff;
 				}
@@ -2432,7 +3529,7 @@ public class Z180 implements CPU {
 			}
 			case 0x28: {     /* JR Z,e */
 				byte offset = (byte) fetch8();
-				if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+				if ((flags() & ZERO_MASK) != 0) {
 					ticks += 2;
 					regPC = memptr = (regPC + offset) & 0xffff;
 				}
@@ -2468,7 +3565,7 @@ public class Z180 implements CPU {
 			}
 			case 0x2F: {     /* CPL */
 				regA ^= 0xff;
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | HALFCARRY_MASK
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | HALFCARRY_MASK
 					| (regA & FLAG_53_MASK) | ADDSUB_MASK;
 				flagQ = true;
 				break;
@@ -2515,9 +3612,9 @@ public class Z180 implements CPU {
 				break;
 			}
 			case 0x37: {     /* SCF */
-				int regQ = lastFlagQ ? sz5h3pnFlags : 0;
+				int regQ = lastFlagQ ? flags() : 0;
 				carryFlag = true;
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (((regQ ^ sz5h3pnFlags) | regA) & FLAG_53_MASK);
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (((regQ ^ flags()) | regA) & FLAG_53_MASK);
 				flagQ = true;
 				break;
 			}
@@ -2557,8 +3654,8 @@ public class Z180 implements CPU {
 				break;
 			}
 			case 0x3F: {     /* CCF */
-				int regQ = lastFlagQ ? sz5h3pnFlags : 0;
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (((regQ ^ sz5h3pnFlags) | regA) & FLAG_53_MASK);
+				int regQ = lastFlagQ ? flags() : 0;
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (((regQ ^ flags()) | regA) & FLAG_53_MASK);
 				if (carryFlag) {
 					sz5h3pnFlags |= HALFCARRY_MASK;
 				}
@@ -2815,6 +3912,7 @@ public class Z180 implements CPU {
 			case 0x76: {     /* HALT */
 				regPC = (regPC - 1) & 0xffff;
 				halted = true;
+				sleeping = false;
 				break;
 			}
 			case 0x77: {     /* LD (HL),A */
@@ -3171,7 +4269,7 @@ public class Z180 implements CPU {
 			}
 			case 0xC0: {     /* RET NZ */
 				++ticks;
-				if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & ZERO_MASK) == 0) {
 					regPC = memptr = pop();
 				} else {
 					++ticks;
@@ -3183,7 +4281,7 @@ public class Z180 implements CPU {
 				break;
 			}
 			case 0xC2: {     /* JP NZ,nn */
-				if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & ZERO_MASK) == 0) {
 					memptr = fetch16();
 					regPC = memptr;
 					break;
@@ -3197,7 +4295,7 @@ public class Z180 implements CPU {
 				break;
 			}
 			case 0xC4: {     /* CALL NZ,nn */
-				if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & ZERO_MASK) == 0) {
 					memptr = fetch16();
 					++ticks;
 					push(regPC);
@@ -3225,7 +4323,7 @@ public class Z180 implements CPU {
 			}
 			case 0xC8: {     /* RET Z */
 				++ticks;
-				if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+				if ((flags() & ZERO_MASK) != 0) {
 					regPC = memptr = pop();
 				} else {
 					++ticks;
@@ -3237,7 +4335,7 @@ public class Z180 implements CPU {
 				break;
 			}
 			case 0xCA: {     /* JP Z,nn */
-				if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+				if ((flags() & ZERO_MASK) != 0) {
 					memptr = fetch16();
 					regPC = memptr;
 					break;
@@ -3251,7 +4349,7 @@ public class Z180 implements CPU {
 				break;
 			}
 			case 0xCC: {     /* CALL Z,nn */
-				if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+				if ((flags() & ZERO_MASK) != 0) {
 					memptr = fetch16();
 					++ticks;
 					push(regPC);
@@ -3416,7 +4514,7 @@ public class Z180 implements CPU {
 			}
 			case 0xE0:       /* RET PO */
 				++ticks;
-				if ((sz5h3pnFlags & PARITY_MASK) == 0) {
+				if ((flags() & PARITY_MASK) == 0) {
 					regPC = memptr = pop();
 				} else {
 					++ticks;
@@ -3426,7 +4524,7 @@ public class Z180 implements CPU {
 				setRegHL(pop());
 				break;
 			case 0xE2:       /* JP PO,nn */
-				if ((sz5h3pnFlags & PARITY_MASK) == 0) {
+				if ((flags() & PARITY_MASK) == 0) {
 					memptr = fetch16();
 					regPC = memptr;
 					break;
@@ -3447,7 +4545,7 @@ public class Z180 implements CPU {
 				break;
 			}
 			case 0xE4:       /* CALL PO,nn */
-				if ((sz5h3pnFlags & PARITY_MASK) == 0) {
+				if ((flags() & PARITY_MASK) == 0) {
 					memptr = fetch16();
 					++ticks;
 					push(regPC);
@@ -3471,7 +4569,7 @@ public class Z180 implements CPU {
 				break;
 			case 0xE8:       /* RET PE */
 				++ticks;
-				if ((sz5h3pnFlags & PARITY_MASK) != 0) {
+				if ((flags() & PARITY_MASK) != 0) {
 					regPC = memptr = pop();
 				} else {
 					++ticks;
@@ -3481,7 +4579,7 @@ public class Z180 implements CPU {
 				regPC = getRegHL();
 				break;
 			case 0xEA:       /* JP PE,nn */
-				if ((sz5h3pnFlags & PARITY_MASK) != 0) {
+				if ((flags() & PARITY_MASK) != 0) {
 					memptr = fetch16();
 					regPC = memptr;
 					break;
@@ -3500,7 +4598,7 @@ public class Z180 implements CPU {
 				break;
 			}
 			case 0xEC:       /* CALL PE,nn */
-				if ((sz5h3pnFlags & PARITY_MASK) != 0) {
+				if ((flags() & PARITY_MASK) != 0) {
 					memptr = fetch16();
 					++ticks;
 					push(regPC);
@@ -3523,7 +4621,7 @@ public class Z180 implements CPU {
 				break;
 			case 0xF0:       /* RET P */
 				++ticks;
-				if (sz5h3pnFlags < SIGN_MASK) {
+				if (flags() < SIGN_MASK) {
 					regPC = memptr = pop();
 				} else {
 					++ticks;
@@ -3533,7 +4631,7 @@ public class Z180 implements CPU {
 				setRegAF(pop());
 				break;
 			case 0xF2:       /* JP P,nn */
-				if (sz5h3pnFlags < SIGN_MASK) {
+				if (flags() < SIGN_MASK) {
 					memptr = fetch16();
 					regPC = memptr;
 					break;
@@ -3545,7 +4643,7 @@ public class Z180 implements CPU {
 				ffIFF1 = ffIFF2 = false;
 				break;
 			case 0xF4:       /* CALL P,nn */
-				if (sz5h3pnFlags < SIGN_MASK) {
+				if (flags() < SIGN_MASK) {
 					memptr = fetch16();
 					++ticks;
 					push(regPC);
@@ -3569,7 +4667,7 @@ public class Z180 implements CPU {
 				break;
 			case 0xF8:       /* RET M */
 				++ticks;
-				if (sz5h3pnFlags > 0x7f) {
+				if (flags() > 0x7f) {
 					regPC = memptr = pop();
 				} else {
 					++ticks;
@@ -3580,7 +4678,7 @@ public class Z180 implements CPU {
 				regSP = getRegHL();
 				break;
 			case 0xFA:       /* JP M,nn */
-				if (sz5h3pnFlags > 0x7f) {
+				if (flags() > 0x7f) {
 					memptr = fetch16();
 					regPC = memptr;
 					break;
@@ -3593,7 +4691,7 @@ public class Z180 implements CPU {
 				pendingEI = true;
 				break;
 			case 0xFC:       /* CALL M,nn */
-				if (sz5h3pnFlags > 0x7f) {
+				if (flags() > 0x7f) {
 					memptr = fetch16();
 					++ticks;
 					push(regPC);
@@ -3894,7 +4992,7 @@ public class Z180 implements CPU {
 			case 0x46: {     /* BIT 0,(HL) */
 				int work16 = getRegHL();
 				bit(0x01, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -3930,7 +5028,7 @@ public class Z180 implements CPU {
 			case 0x4E: {     /* BIT 1,(HL) */
 				int work16 = getRegHL();
 				bit(0x02, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -3966,7 +5064,7 @@ public class Z180 implements CPU {
 			case 0x56: {     /* BIT 2,(HL) */
 				int work16 = getRegHL();
 				bit(0x04, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -4002,7 +5100,7 @@ public class Z180 implements CPU {
 			case 0x5E: {     /* BIT 3,(HL) */
 				int work16 = getRegHL();
 				bit(0x08, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -4038,7 +5136,7 @@ public class Z180 implements CPU {
 			case 0x66: {     /* BIT 4,(HL) */
 				int work16 = getRegHL();
 				bit(0x10, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -4074,7 +5172,7 @@ public class Z180 implements CPU {
 			case 0x6E: {     /* BIT 5,(HL) */
 				int work16 = getRegHL();
 				bit(0x20, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -4110,7 +5208,7 @@ public class Z180 implements CPU {
 			case 0x76: {     /* BIT 6,(HL) */
 				int work16 = getRegHL();
 				bit(0x40, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -4146,7 +5244,7 @@ public class Z180 implements CPU {
 			case 0x7E: {     /* BIT 7,(HL) */
 				int work16 = getRegHL();
 				bit(0x80, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -5147,56 +6245,56 @@ public class Z180 implements CPU {
 			}
 			case 0x46: {     /* BIT 0,(IX+d) */
 				bit(0x01, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
 			}
 			case 0x4E: {     /* BIT 1,(IX+d) */
 				bit(0x02, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
 			}
 			case 0x56: {     /* BIT 2,(IX+d) */
 				bit(0x04, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
 			}
 			case 0x5E: {     /* BIT 3,(IX+d) */
 				bit(0x08, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
 			}
 			case 0x66: {     /* BIT 4,(IX+d) */
 				bit(0x10, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
 			}
 			case 0x6E: {     /* BIT 5,(IX+d) */
 				bit(0x20, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
 			}
 			case 0x76: {     /* BIT 6,(IX+d) */
 				bit(0x40, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
 			}
 			case 0x7E: {     /* BIT 7,(IX+d) */
 				bit(0x80, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -5697,6 +6795,7 @@ public class Z180 implements CPU {
 				// TODO: like HALT?
 				regPC = (regPC - 2) & 0xffff;
 				halted = true;
+				sleeping = true;
 				ticks += 2;
 				break;
 			case 0x78: {     /* IN A,(C) */
@@ -5785,20 +6884,26 @@ public class Z180 implements CPU {
 			}
 			case 0xB0: {     /* LDIR */
 				ldi();
-				if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK) {
+				if ((flags() & PARITY_MASK) == PARITY_MASK) {
 					regPC = (regPC - 2) & 0xffff;
 					memptr = regPC + 1;
 					ticks += 2;
+					if (blockBudget > 0 && !intrFetch) {
+						repeatBlock();
+					}
 				}
 				break;
 			}
 			case 0xB1: {     /* CPIR */
 				cpi();
-				if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK
-					&& (sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & PARITY_MASK) == PARITY_MASK
+					&& (flags() & ZERO_MASK) == 0) {
 					regPC = (regPC - 2) & 0xffff;
 					memptr = regPC + 1;
 					ticks += 2;
+					if (blockBudget > 0 && !intrFetch) {
+						repeatBlock();
+					}
 				}
 				break;
 			}
@@ -5820,20 +6925,26 @@ public class Z180 implements CPU {
 			}
 			case 0xB8: {     /* LDDR */
 				ldd();
-				if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK) {
+				if ((flags() & PARITY_MASK) == PARITY_MASK) {
 					regPC = (regPC - 2) & 0xffff;
 					memptr = regPC + 1;
 					ticks += 2;
+					if (blockBudget > 0 && !intrFetch) {
+						repeatBlock();
+					}
 				}
 				break;
 			}
 			case 0xB9: {     /* CPDR */
 				cpd();
-				if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK
-					&& (sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & PARITY_MASK) == PARITY_MASK
+					&& (flags() & ZERO_MASK) == 0) {
 					regPC = (regPC - 2) & 0xffff;
 					memptr = regPC + 1;
 					ticks += 2;
+					if (blockBudget > 0 && !intrFetch) {
+						repeatBlock();
+					}
 				}
 				break;
 			}
@@ -5883,13 +6994,13 @@ public class Z180 implements CPU {
 		s += String.format("IX=%04x IY=%04x\n", getRegIX(), getRegIY());
 		s += String.format("HL=%04x DE=%04x BC=%04x\n", getRegHL(), getRegDE(), getRegBC());
 		s += String.format("A=%02x F=%s%s%s%s%s%s%s%s\n", regA,
-			(sz5h3pnFlags & SIGN_MASK) == 0 ? "s" : "S",
-			(sz5h3pnFlags & ZERO_MASK) == 0 ? "z" : "Z",
-			(sz5h3pnFlags & BIT5_MASK) == 0 ? "." : "5",
-			(sz5h3pnFlags & HALFCARRY_MASK) == 0 ? "h" : "H",
-			(sz5h3pnFlags & BIT3_MASK) == 0 ? "." : "3",
-			(sz5h3pnFlags & PARITY_MASK) == 0 ? "p" : "P",
-			(sz5h3pnFlags & ADDSUB_MASK) == 0 ? "n" : "N",
+			(flags() & SIGN_MASK) == 0 ? "s" : "S",
+			(flags() & ZERO_MASK) == 0 ? "z" : "Z",
+			(flags() & BIT5_MASK) == 0 ? "." : "5",
+			(flags() & HALFCARRY_MASK) == 0 ? "h" : "H",
+			(flags() & BIT3_MASK) == 0 ? "." : "3",
+			(flags() & PARITY_MASK) == 0 ? "p" : "P",
+			(flags() & ADDSUB_MASK) == 0 ? "n" : "N",
 			carryFlag ? "c" : "C"
 			);
 		s += String.format("HL'=%04x DE'=%04x BC'=%04x\n", getRegHLx(), getRegDEx(), getRegBCx());
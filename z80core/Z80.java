@@ -158,6 +158,9 @@
  */
 package z80core;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import z80core.Z80State.IntMode;
 
@@ -188,7 +191,18 @@ public class Z80 implements CPU {
 	// Acumulador y resto de registros de 8 bits
 	private int regA, regB, regC, regD, regE, regH, regL;
 	// Flags sIGN, zERO, 5, hALFCARRY, 3, pARITY y ADDSUB (n)
+	// Negative (LAZY_*) if not yet evaluated, see flags().
 	private int sz5h3pnFlags;
+	// Lazy flags: 8-bit arithmetic only records its operands
+	private boolean lazyFlags = false;
+	private int lazyA, lazyOper, lazyRes;
+	private static final int LAZY_ADD = -1;
+	private static final int LAZY_ADC = -2;
+	private static final int LAZY_SUB = -3;
+	private static final int LAZY_SBC = -4;
+	private static final int LAZY_CP = -5;
+	private static final int LAZY_INC = -6;
+	private static final int LAZY_DEC = -7;
 	// El flag Carry es el único que se trata aparte
 	private boolean carryFlag;
 	/* Flags para indicar la modificación del registro F en la instrucción actual
@@ -228,13 +242,42 @@ public class Z80 implements CPU {
 	// EI solo habilita las interrupciones DESPUES de ejecutar la
 	// siguiente instrucción (excepto si la siguiente instrucción es un EI...)
 	private boolean pendingEI = false;
-	// Estado de la línea NMI
-	private boolean activeNMI = false;
-	private String spcl = "";
-	// Si está activa la línea INT
+	private int spcl = SpecialCycle.NONE;
+	private CycleListener cycListener = null;
+	private Profiler prof = null;
+	private MemoryHeat heat = null;	// only during runProfiled()
+	private PortStats ports = null;	// only during runProfiled()
+	private PageTable pageTable = null;
+	private volatile boolean stopRun = false;
+	private int runCy = 0;	// T-states so far in runFor()
+	// Complete LDIR/LDDR/CPIR/CPDR without returning from execute()
+	private boolean blockBulk = false;
+	private int blockBudget = 0;	// cycles remaining in runFor()
+	// Translation of hot code into JVM bytecode, used by runFor()
+	private Z80Compiler jit = null;
+	// Instruction bytes by address: length (1-4) in the top byte,
+	// bytes in fetch order from the bottom. 0 if not (yet) known.
+	private long[] predecode = null;
+	private long pfBytes;	// predecoded bytes not yet fetched
+	private int pfLen = 0;
+	// Estado de las líneas INT y NMI
 	// En el 48 y los +2a/+3 la línea INT se activa durante 32 ciclos de reloj
 	// En el 128 y +2, se activa 36 ciclos de reloj
-	private boolean activeINT = false;
+	// INT_LINE follows the INT level, NMI_LINE is set by NMI and
+	// stays set until taken. Only changed through INT_LINES, so any
+	// thread may signal interrupts; they are seen between instructions.
+	private int intLines = 0;
+	private static final int INT_LINE = 0b0001;
+	private static final int NMI_LINE = 0b0010;
+	private static final VarHandle INT_LINES;
+	static {
+		try {
+			INT_LINES = MethodHandles.lookup().findVarHandle(
+				Z80.class, "intLines", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 	// Modo de interrupción
 	private IntMode modeINT = IntMode.IM0;
 	private boolean intrFetch = false;
@@ -316,6 +359,36 @@ public class Z80 implements CPU {
 	// Un true en una dirección indica que se debe notificar que se va a
 	// ejecutar la instrucción que está en esa direción.
 	private final boolean breakpointAt[] = new boolean[65536];
+	// Unprefixed instruction lengths (0 for prefixes), and extra
+	// displacement byte when used with a DD/FD prefix.
+	private static final byte insnLen[] = new byte[256];
+	private static final byte ixdLen[] = new byte[256];
+
+	static {
+		Arrays.fill(insnLen, (byte)1);
+		for (int op : new int[] { 0x06, 0x0E, 0x10, 0x16, 0x18, 0x1E,
+				0x20, 0x26, 0x28, 0x2E, 0x30, 0x36, 0x38, 0x3E,
+				0xC6, 0xCB, 0xCE, 0xD3, 0xD6, 0xDB, 0xDE,
+				0xE6, 0xEE, 0xF6, 0xFE }) {
+			insnLen[op] = 2;
+		}
+		for (int op : new int[] { 0x01, 0x11, 0x21, 0x22, 0x2A, 0x31,
+				0x32, 0x3A, 0xC3, 0xCD }) {
+			insnLen[op] = 3;
+		}
+		for (int cc = 0; cc < 8; ++cc) {
+			insnLen[0xC2 | (cc << 3)] = 3;	// JP cc,nn
+			insnLen[0xC4 | (cc << 3)] = 3;	// CALL cc,nn
+		}
+		insnLen[0xDD] = insnLen[0xED] = insnLen[0xFD] = 0;
+		for (int r = 0; r < 8; ++r) {
+			ixdLen[0x46 | (r << 3)] = 1;	// LD r,(IX+d)
+			ixdLen[0x70 | r] = 1;		// LD (IX+d),r
+			ixdLen[0x86 | (r << 3)] = 1;	// ALU (IX+d)
+		}
+		ixdLen[0x76] = 0;	// HALT
+		ixdLen[0x34] = ixdLen[0x35] = ixdLen[0x36] = 1;
+	}
 
 	// Constructor de la clase
 	public Z80(Computer impl) {
@@ -449,7 +522,7 @@ public class Z80 implements CPU {
 
 	// Acceso a registros de 16 bits
 	public final int getRegAF() {
-		return (regA << 8) | (carryFlag ? sz5h3pnFlags | CARRY_MASK : sz5h3pnFlags);
+		return (regA << 8) | (carryFlag ? flags() | CARRY_MASK : flags());
 	}
 
 	public final void setRegAF(int word) {
@@ -686,92 +759,92 @@ public class Z80 implements CPU {
 	}
 
 	public final boolean isAddSubFlag() {
-		return (sz5h3pnFlags & ADDSUB_MASK) != 0;
+		return (flags() & ADDSUB_MASK) != 0;
 	}
 
 	public final void setAddSubFlag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= ADDSUB_MASK;
+			sz5h3pnFlags = flags() | ADDSUB_MASK;
 		} else {
-			sz5h3pnFlags &= ~ADDSUB_MASK;
+			sz5h3pnFlags = flags() & ~ADDSUB_MASK;
 		}
 	}
 
 	public final boolean isParOverFlag() {
-		return (sz5h3pnFlags & PARITY_MASK) != 0;
+		return (flags() & PARITY_MASK) != 0;
 	}
 
 	public final void setParOverFlag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= PARITY_MASK;
+			sz5h3pnFlags = flags() | PARITY_MASK;
 		} else {
-			sz5h3pnFlags &= ~PARITY_MASK;
+			sz5h3pnFlags = flags() & ~PARITY_MASK;
 		}
 	}
 
 	public final boolean isBit3Flag() {
-		return (sz5h3pnFlags & BIT3_MASK) != 0;
+		return (flags() & BIT3_MASK) != 0;
 	}
 
 	public final void setBit3Flag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= BIT3_MASK;
+			sz5h3pnFlags = flags() | BIT3_MASK;
 		} else {
-			sz5h3pnFlags &= ~BIT3_MASK;
+			sz5h3pnFlags = flags() & ~BIT3_MASK;
 		}
 	}
 
 	public final boolean isHalfCarryFlag() {
-		return (sz5h3pnFlags & HALFCARRY_MASK) != 0;
+		return (flags() & HALFCARRY_MASK) != 0;
 	}
 
 	public final void setHalfCarryFlag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			sz5h3pnFlags = flags() | HALFCARRY_MASK;
 		} else {
-			sz5h3pnFlags &= ~HALFCARRY_MASK;
+			sz5h3pnFlags = flags() & ~HALFCARRY_MASK;
 		}
 	}
 
 	public final boolean isBit5Flag() {
-		return (sz5h3pnFlags & BIT5_MASK) != 0;
+		return (flags() & BIT5_MASK) != 0;
 	}
 
 	public final void setBit5Flag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= BIT5_MASK;
+			sz5h3pnFlags = flags() | BIT5_MASK;
 		} else {
-			sz5h3pnFlags &= ~BIT5_MASK;
+			sz5h3pnFlags = flags() & ~BIT5_MASK;
 		}
 	}
 
 	public final boolean isZeroFlag() {
-		return (sz5h3pnFlags & ZERO_MASK) != 0;
+		return (flags() & ZERO_MASK) != 0;
 	}
 
 	public final void setZeroFlag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= ZERO_MASK;
+			sz5h3pnFlags = flags() | ZERO_MASK;
 		} else {
-			sz5h3pnFlags &= ~ZERO_MASK;
+			sz5h3pnFlags = flags() & ~ZERO_MASK;
 		}
 	}
 
 	public final boolean isSignFlag() {
-		return (sz5h3pnFlags & SIGN_MASK) != 0;
+		return (flags() & SIGN_MASK) != 0;
 	}
 
 	public final void setSignFlag(boolean state) {
 		if (state) {
-			sz5h3pnFlags |= SIGN_MASK;
+			sz5h3pnFlags = flags() | SIGN_MASK;
 		} else {
-			sz5h3pnFlags &= ~SIGN_MASK;
+			sz5h3pnFlags = flags() & ~SIGN_MASK;
 		}
 	}
 
 	// Acceso a los flags F
 	public final int getFlags() {
-		return carryFlag ? sz5h3pnFlags | CARRY_MASK : sz5h3pnFlags;
+		return carryFlag ? flags() | CARRY_MASK : flags();
 	}
 
 	public final void setFlags(int regF) {
@@ -801,25 +874,37 @@ public class Z80 implements CPU {
 
 	public final boolean hasNMI() { return true; }
 	public final boolean isNMI() {
-		return activeNMI;
+		return (intLines() & NMI_LINE) != 0;
 	}
 
 	public final void setNMI(boolean nmi) {
-		activeNMI = nmi;
+		setIntLines(NMI_LINE, nmi);
 	}
 
 	// La línea de NMI se activa por impulso, no por nivel
 	public final void triggerNMI() {
-		activeNMI = true;
+		setIntLines(NMI_LINE, true);
 	}
 
 	// La línea INT se activa por nivel
 	public final boolean isINTLine() {
-		return activeINT;
+		return (intLines() & INT_LINE) != 0;
 	}
 
 	public final void setINTLine(boolean intLine) {
-		activeINT = intLine;
+		setIntLines(INT_LINE, intLine);
+	}
+
+	private int intLines() {
+		return (int)INT_LINES.getAcquire(this);
+	}
+
+	private void setIntLines(int lines, boolean on) {
+		if (on) {
+			INT_LINES.getAndBitwiseOrRelease(this, lines);
+		} else {
+			INT_LINES.getAndBitwiseAndRelease(this, ~lines);
+		}
 	}
 
 	public final boolean hasINT1() { return false; }
@@ -887,9 +972,10 @@ public class Z80 implements CPU {
 		state.setIFF1(ffIFF1);
 		state.setIFF2(ffIFF2);
 		state.setIM(modeINT);
-		state.setINTLine(activeINT);
+		int lines = intLines();
+		state.setINTLine((lines & INT_LINE) != 0);
 		state.setPendingEI(pendingEI);
-		state.setNMI(activeNMI);
+		state.setNMI((lines & NMI_LINE) != 0);
 		state.setFlagQ(lastFlagQ);
 		return state;
 	}
@@ -922,13 +1008,120 @@ public class Z80 implements CPU {
 		ffIFF1 = state.isIFF1();
 		ffIFF2 = state.isIFF2();
 		modeINT = state.getIM();
-		activeINT = state.isINTLine();
+		setIntLines(INT_LINE, state.isINTLine());
 		pendingEI = state.isPendingEI();
-		activeNMI = state.isNMI();
+		setIntLines(NMI_LINE, state.isNMI());
 		flagQ = false;
 		lastFlagQ = state.isFlagQ();
 	}
 
+	// Binary snapshot: the complete CPU state, but not the configuration
+	// (Computer, PageTable, listeners, breakpoints, bulk/lazy modes).
+	// Read/written at the buffer's position, in the buffer's byte order.
+	// Restoring reproduces the same execution from that point.
+	private static final int SNAP_MAGIC = 0x5a383020;	// "Z80 "
+	private static final int SNAP_VERSION = 1;
+
+	public int stateSize() { return 64; }
+
+	public void saveState(ByteBuffer buf) {
+		buf.putInt(SNAP_MAGIC);
+		buf.putShort((short)SNAP_VERSION);
+		buf.put((byte)regA);
+		buf.put((byte)regB);
+		buf.put((byte)regC);
+		buf.put((byte)regD);
+		buf.put((byte)regE);
+		buf.put((byte)regH);
+		buf.put((byte)regL);
+		buf.putInt(sz5h3pnFlags);	// may be a LAZY_* code
+		buf.putInt(lazyA);
+		buf.putInt(lazyOper);
+		buf.putInt(lazyRes);
+		buf.put((byte)regAx);
+		buf.put((byte)regFx);
+		buf.put((byte)regBx);
+		buf.put((byte)regCx);
+		buf.put((byte)regDx);
+		buf.put((byte)regEx);
+		buf.put((byte)regHx);
+		buf.put((byte)regLx);
+		buf.putShort((short)regPC);
+		buf.putShort((short)regSP);
+		buf.putShort((short)regIX);
+		buf.putShort((short)regIY);
+		buf.putShort((short)memptr);
+		buf.put((byte)regI);
+		buf.putInt(regR);
+		buf.put((byte)modeINT.ordinal());
+		buf.putInt(intLines());
+		buf.putInt(ticks);
+		buf.put((byte)spcl);
+		int f = 0;
+		if (carryFlag) f |= 0x0001;
+		if (flagQ) f |= 0x0002;
+		if (lastFlagQ) f |= 0x0004;
+		if (regRbit7) f |= 0x0008;
+		if (ffIFF1) f |= 0x0010;
+		if (ffIFF2) f |= 0x0020;
+		if (pendingEI) f |= 0x0040;
+		if (halted) f |= 0x0080;
+		if (intrFetch) f |= 0x0100;
+		buf.putShort((short)f);
+	}
+
+	public void loadState(ByteBuffer buf) {
+		if (buf.getInt() != SNAP_MAGIC || buf.getShort() != SNAP_VERSION) {
+			throw new IllegalArgumentException("Not a Z80 snapshot");
+		}
+		regA = buf.get() & 0xff;
+		regB = buf.get() & 0xff;
+		regC = buf.get() & 0xff;
+		regD = buf.get() & 0xff;
+		regE = buf.get() & 0xff;
+		regH = buf.get() & 0xff;
+		regL = buf.get() & 0xff;
+		sz5h3pnFlags = buf.getInt();
+		lazyA = buf.getInt();
+		lazyOper = buf.getInt();
+		lazyRes = buf.getInt();
+		regAx = buf.get() & 0xff;
+		regFx = buf.get() & 0xff;
+		regBx = buf.get() & 0xff;
+		regCx = buf.get() & 0xff;
+		regDx = buf.get() & 0xff;
+		regEx = buf.get() & 0xff;
+		regHx = buf.get() & 0xff;
+		regLx = buf.get() & 0xff;
+		regPC = buf.getShort() & 0xffff;
+		regSP = buf.getShort() & 0xffff;
+		regIX = buf.getShort() & 0xffff;
+		regIY = buf.getShort() & 0xffff;
+		memptr = buf.getShort() & 0xffff;
+		regI = buf.get() & 0xff;
+		regR = buf.getInt();
+		switch (buf.get()) {
+		case 0: modeINT = IntMode.IM0; break;
+		case 1: modeINT = IntMode.IM1; break;
+		default: modeINT = IntMode.IM2; break;
+		}
+		INT_LINES.setRelease(this, buf.getInt());
+		ticks = buf.getInt();
+		spcl = buf.get();
+		int f = buf.getShort();
+		carryFlag = (f & 0x0001) != 0;
+		flagQ = (f & 0x0002) != 0;
+		lastFlagQ = (f & 0x0004) != 0;
+		regRbit7 = (f & 0x0008) != 0;
+		ffIFF1 = (f & 0x0010) != 0;
+		ffIFF2 = (f & 0x0020) != 0;
+		pendingEI = (f & 0x0040) != 0;
+		halted = (f & 0x0080) != 0;
+		intrFetch = (f & 0x0100) != 0;
+		pfLen = 0;
+		flushCode();
+	}
+
 	// Reset
 	/* Según el documento de Sean Young, que se encuentra en
 	 * [http://www.myquest.com/z80undocumented], la mejor manera de emular el
@@ -971,8 +1164,7 @@ public class Z80 implements CPU {
 		ffIFF1 = false;
 		ffIFF2 = false;
 		pendingEI = false;
-		activeNMI = false;
-		activeINT = false;
+		INT_LINES.setRelease(this, 0);
 		halted = false;
 		setIM(IntMode.IM0);
 		intrFetch = false;
@@ -1141,59 +1333,88 @@ public class Z80 implements CPU {
 	private int inc8(int oper8) {
 		oper8 = (oper8 + 1) & 0xff;
 
-		sz5h3pnFlags = sz53n_addTable[oper8];
-
-		if ((oper8 & 0x0f) == 0) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
-		}
-
-		if (oper8 == 0x80) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+		if (lazyFlags) {
+			lazyRes = oper8;
+			sz5h3pnFlags = LAZY_INC;
+		} else {
+			sz5h3pnFlags = inc8Flags(oper8);
 		}
 
 		flagQ = true;
 		return oper8;
 	}
 
-	// Decrementa un valor de 8 bits modificando los flags oportunos
-	private int dec8(int oper8) {
-		oper8 = (oper8 - 1) & 0xff;
+	private static int inc8Flags(int res) {
+		int flags = sz53n_addTable[res];
 
-		sz5h3pnFlags = sz53n_subTable[oper8];
+		if ((res & 0x0f) == 0) {
+			flags |= HALFCARRY_MASK;
+		}
 
-		if ((oper8 & 0x0f) == 0x0f) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+		if (res == 0x80) {
+			flags |= OVERFLOW_MASK;
 		}
+		return flags;
+	}
 
-		if (oper8 == 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+	// Decrementa un valor de 8 bits modificando los flags oportunos
+	private int dec8(int oper8) {
+		oper8 = (oper8 - 1) & 0xff;
+
+		if (lazyFlags) {
+			lazyRes = oper8;
+			sz5h3pnFlags = LAZY_DEC;
+		} else {
+			sz5h3pnFlags = dec8Flags(oper8);
 		}
 
 		flagQ = true;
 		return oper8;
 	}
 
+	private static int dec8Flags(int res) {
+		int flags = sz53n_subTable[res];
+
+		if ((res & 0x0f) == 0x0f) {
+			flags |= HALFCARRY_MASK;
+		}
+
+		if (res == 0x7f) {
+			flags |= OVERFLOW_MASK;
+		}
+		return flags;
+	}
+
 	// Suma de 8 bits afectando a los flags
 	private void add(int oper8) {
 		int res = regA + oper8;
 
 		carryFlag = res > 0xff;
 		res &= 0xff;
-		sz5h3pnFlags = sz53n_addTable[res];
+		if (lazyFlags) {
+			lazy(LAZY_ADD, oper8, res);
+		} else {
+			sz5h3pnFlags = addFlags(regA, oper8, res);
+		}
+
+		regA = res;
+		flagQ = true;
+	}
+
+	private static int addFlags(int regA, int oper8, int res) {
+		int flags = sz53n_addTable[res];
 
 		/* El módulo 16 del resultado será menor que el módulo 16 del registro A
 		 * si ha habido HalfCarry. Sucede lo mismo para todos los métodos suma
 		 * SIN carry */
 		if ((res & 0x0f) < (regA & 0x0f)) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			flags |= HALFCARRY_MASK;
 		}
 
 		if (((regA ^ ~oper8) & (regA ^ res)) > 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+			flags |= OVERFLOW_MASK;
 		}
-
-		regA = res;
-		flagQ = true;
+		return flags;
 	}
 
 	// Suma con acarreo de 8 bits
@@ -1206,18 +1427,27 @@ public class Z80 implements CPU {
 
 		carryFlag = res > 0xff;
 		res &= 0xff;
-		sz5h3pnFlags = sz53n_addTable[res];
+		if (lazyFlags) {
+			lazy(LAZY_ADC, oper8, res);
+		} else {
+			sz5h3pnFlags = adcFlags(regA, oper8, res);
+		}
+
+		regA = res;
+		flagQ = true;
+	}
+
+	private static int adcFlags(int regA, int oper8, int res) {
+		int flags = sz53n_addTable[res];
 
 		if (((regA ^ oper8 ^ res) & 0x10) != 0) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			flags |= HALFCARRY_MASK;
 		}
 
 		if (((regA ^ ~oper8) & (regA ^ res)) > 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+			flags |= OVERFLOW_MASK;
 		}
-
-		regA = res;
-		flagQ = true;
+		return flags;
 	}
 
 	// Suma dos operandos de 16 bits sin carry afectando a los flags
@@ -1225,7 +1455,7 @@ public class Z80 implements CPU {
 		oper16 += reg16;
 
 		carryFlag = oper16 > 0xffff;
-		sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | ((oper16 >>> 8) & FLAG_53_MASK);
+		sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | ((oper16 >>> 8) & FLAG_53_MASK);
 		oper16 &= 0xffff;
 
 		if ((oper16 & 0x0fff) < (reg16 & 0x0fff)) {
@@ -1273,21 +1503,30 @@ public class Z80 implements CPU {
 
 		carryFlag = res < 0;
 		res &= 0xff;
-		sz5h3pnFlags = sz53n_subTable[res];
+		if (lazyFlags) {
+			lazy(LAZY_SUB, oper8, res);
+		} else {
+			sz5h3pnFlags = subFlags(regA, oper8, res);
+		}
+
+		regA = res;
+		flagQ = true;
+	}
+
+	private static int subFlags(int regA, int oper8, int res) {
+		int flags = sz53n_subTable[res];
 
 		/* El módulo 16 del resultado será mayor que el módulo 16 del registro A
 		 * si ha habido HalfCarry. Sucede lo mismo para todos los métodos resta
 		 * SIN carry, incluido cp */
 		if ((res & 0x0f) > (regA & 0x0f)) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			flags |= HALFCARRY_MASK;
 		}
 
 		if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+			flags |= OVERFLOW_MASK;
 		}
-
-		regA = res;
-		flagQ = true;
+		return flags;
 	}
 
 	// Resta con acarreo de 8 bits
@@ -1300,18 +1539,27 @@ public class Z80 implements CPU {
 
 		carryFlag = res < 0;
 		res &= 0xff;
-		sz5h3pnFlags = sz53n_subTable[res];
+		if (lazyFlags) {
+			lazy(LAZY_SBC, oper8, res);
+		} else {
+			sz5h3pnFlags = sbcFlags(regA, oper8, res);
+		}
+
+		regA = res;
+		flagQ = true;
+	}
+
+	private static int sbcFlags(int regA, int oper8, int res) {
+		int flags = sz53n_subTable[res];
 
 		if (((regA ^ oper8 ^ res) & 0x10) != 0) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			flags |= HALFCARRY_MASK;
 		}
 
 		if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+			flags |= OVERFLOW_MASK;
 		}
-
-		regA = res;
-		flagQ = true;
+		return flags;
 	}
 
 	// Resta con acarreo de 16 bits
@@ -1377,19 +1625,65 @@ public class Z80 implements CPU {
 		carryFlag = res < 0;
 		res &= 0xff;
 
-		sz5h3pnFlags = (sz53n_addTable[oper8] & FLAG_53_MASK)
+		if (lazyFlags) {
+			lazy(LAZY_CP, oper8, res);
+		} else {
+			sz5h3pnFlags = cpFlags(regA, oper8, res);
+		}
+
+		flagQ = true;
+	}
+
+	private static int cpFlags(int regA, int oper8, int res) {
+		int flags = (sz53n_addTable[oper8] & FLAG_53_MASK)
 			| // No necesito preservar H, pero está a 0 en la tabla de todas formas
 			(sz53n_subTable[res] & FLAG_SZHN_MASK);
 
 		if ((res & 0x0f) > (regA & 0x0f)) {
-			sz5h3pnFlags |= HALFCARRY_MASK;
+			flags |= HALFCARRY_MASK;
 		}
 
 		if (((regA ^ oper8) & (regA ^ res)) > 0x7f) {
-			sz5h3pnFlags |= OVERFLOW_MASK;
+			flags |= OVERFLOW_MASK;
 		}
+		return flags;
+	}
 
-		flagQ = true;
+	// Record an 8-bit arithmetic operation, for flags() to evaluate
+	// if F is ever needed. A is still the value before the operation.
+	private void lazy(int op, int oper8, int res) {
+		lazyA = regA;
+		lazyOper = oper8;
+		lazyRes = res;
+		sz5h3pnFlags = op;
+	}
+
+	// SZ5H3PN flags, evaluating the last operation if it was
+	// recorded by lazy(). All reads of F must come through here.
+	private int flags() {
+		if (sz5h3pnFlags < 0) {
+			sz5h3pnFlags = evalFlags();
+		}
+		return sz5h3pnFlags;
+	}
+
+	private int evalFlags() {
+		switch (sz5h3pnFlags) {
+		case LAZY_ADD:
+			return addFlags(lazyA, lazyOper, lazyRes);
+		case LAZY_ADC:
+			return adcFlags(lazyA, lazyOper, lazyRes);
+		case LAZY_SUB:
+			return subFlags(lazyA, lazyOper, lazyRes);
+		case LAZY_SBC:
+			return sbcFlags(lazyA, lazyOper, lazyRes);
+		case LAZY_CP:
+			return cpFlags(lazyA, lazyOper, lazyRes);
+		case LAZY_INC:
+			return inc8Flags(lazyRes);
+		default:
+			return dec8Flags(lazyRes);
+		}
 	}
 
 	// DAA
@@ -1397,7 +1691,7 @@ public class Z80 implements CPU {
 		int suma = 0;
 		boolean carry = carryFlag;
 
-		if ((sz5h3pnFlags & HALFCARRY_MASK) != 0 || (regA & 0x0f) > 0x09) {
+		if ((flags() & HALFCARRY_MASK) != 0 || (regA & 0x0f) > 0x09) {
 			suma = 6;
 		}
 
@@ -1409,12 +1703,12 @@ public class Z80 implements CPU {
 			carry = true;
 		}
 
-		if ((sz5h3pnFlags & ADDSUB_MASK) != 0) {
+		if ((flags() & ADDSUB_MASK) != 0) {
 			sub(suma);
-			sz5h3pnFlags = (sz5h3pnFlags & HALFCARRY_MASK) | sz53pn_subTable[regA];
+			sz5h3pnFlags = (flags() & HALFCARRY_MASK) | sz53pn_subTable[regA];
 		} else {
 			add(suma);
-			sz5h3pnFlags = (sz5h3pnFlags & HALFCARRY_MASK) | sz53pn_addTable[regA];
+			sz5h3pnFlags = (flags() & HALFCARRY_MASK) | sz53pn_addTable[regA];
 		}
 
 		carryFlag = carry;
@@ -1448,7 +1742,7 @@ public class Z80 implements CPU {
 		decRegBC();
 		work8 += regA;
 
-		sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZ_MASK) | (work8 & BIT3_MASK);
+		sz5h3pnFlags = (flags() & FLAG_SZ_MASK) | (work8 & BIT3_MASK);
 
 		if ((work8 & ADDSUB_MASK) != 0) {
 			sz5h3pnFlags |= BIT5_MASK;
@@ -1471,7 +1765,7 @@ public class Z80 implements CPU {
 		decRegBC();
 		work8 += regA;
 
-		sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZ_MASK) | (work8 & BIT3_MASK);
+		sz5h3pnFlags = (flags() & FLAG_SZ_MASK) | (work8 & BIT3_MASK);
 
 		if ((work8 & ADDSUB_MASK) != 0) {
 			sz5h3pnFlags |= BIT5_MASK;
@@ -1493,8 +1787,8 @@ public class Z80 implements CPU {
 		ticks += 5;
 		incRegHL();
 		decRegBC();
-		memHL = regA - memHL - ((sz5h3pnFlags & HALFCARRY_MASK) != 0 ? 1 : 0);
-		sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHN_MASK) | (memHL & BIT3_MASK);
+		memHL = regA - memHL - ((flags() & HALFCARRY_MASK) != 0 ? 1 : 0);
+		sz5h3pnFlags = (flags() & FLAG_SZHN_MASK) | (memHL & BIT3_MASK);
 
 		if ((memHL & ADDSUB_MASK) != 0) {
 			sz5h3pnFlags |= BIT5_MASK;
@@ -1518,8 +1812,8 @@ public class Z80 implements CPU {
 		ticks += 5;
 		decRegHL();
 		decRegBC();
-		memHL = regA - memHL - ((sz5h3pnFlags & HALFCARRY_MASK) != 0 ? 1 : 0);
-		sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHN_MASK) | (memHL & BIT3_MASK);
+		memHL = regA - memHL - ((flags() & HALFCARRY_MASK) != 0 ? 1 : 0);
+		sz5h3pnFlags = (flags() & FLAG_SZHN_MASK) | (memHL & BIT3_MASK);
 
 		if ((memHL & ADDSUB_MASK) != 0) {
 			sz5h3pnFlags |= BIT5_MASK;
@@ -1537,7 +1831,7 @@ public class Z80 implements CPU {
 	private void ini() {
 		memptr = getRegBC();
 		++ticks;
-		int work8 = computerImpl.inPort(memptr);
+		int work8 = inPort(memptr);
 		ticks += 4;
 		poke8(getRegHL(), work8);
 
@@ -1571,7 +1865,7 @@ public class Z80 implements CPU {
 	private void ind() {
 		memptr = getRegBC();
 		++ticks;
-		int work8 = computerImpl.inPort(memptr);
+		int work8 = inPort(memptr);
 		ticks += 4;
 		poke8(getRegHL(), work8);
 
@@ -1610,7 +1904,7 @@ public class Z80 implements CPU {
 		memptr = getRegBC();
 
 		int work8 = peek8(getRegHL());
-		computerImpl.outPort(memptr, work8);
+		outPort(memptr, work8);
 		ticks += 4;
 		memptr++;
 
@@ -1644,7 +1938,7 @@ public class Z80 implements CPU {
 		memptr = getRegBC();
 
 		int work8 = peek8(getRegHL());
-		computerImpl.outPort(memptr, work8);
+		outPort(memptr, work8);
 		ticks += 4;
 		memptr--;
 
@@ -1699,10 +1993,21 @@ public class Z80 implements CPU {
 	// fetch instruction byte, from either regPC (incr PC) or interrupt
 	private int fetch8() {
 		int val;
-		if (intrFetch) {
+		if (pfLen > 0) {
+			if (heat != null) {
+				++heat.fetch[regPC >> 8];
+			}
+			val = (int)pfBytes & 0xff;
+			pfBytes >>>= 8;
+			--pfLen;
+			regPC = (regPC + 1) & 0xffff;
+		} else if (intrFetch) {
 			val = computerImpl.intrResp(modeINT);
 		} else {
-			val = computerImpl.peek8(regPC);
+			if (heat != null) {
+				++heat.fetch[regPC >> 8];
+			}
+			val = memRead(regPC);
 			regPC = (regPC + 1) & 0xffff;
 		}
 		ticks += 3;
@@ -1723,29 +2028,58 @@ public class Z80 implements CPU {
 	}
 
 	private int peek8(int address) {
-		int val = computerImpl.peek8(address);
+		if (heat != null) {
+			++heat.read[(address >> 8) & 0xff];
+		}
+		int val = memRead(address);
 		ticks += 3;
 		return val;
 	}
 
 	private int peek16(int address) {
 		// Z80 is little-endian
-		int val = computerImpl.peek8(address);
-		val = (computerImpl.peek8(address + 1) << 8) | val;
+		if (heat != null) {
+			++heat.read[(address >> 8) & 0xff];
+			++heat.read[((address + 1) >> 8) & 0xff];
+		}
+		int val = memRead(address);
+		val = (memRead(address + 1) << 8) | val;
 		ticks += 6;
 		return val;
 	}
 
 	private void poke8(int address, int value) {
-		computerImpl.poke8(address, value);
+		if (heat != null) {
+			++heat.write[(address >> 8) & 0xff];
+		}
+		memWrite(address, value);
 		ticks += 3;
+		codeChanged(address);
 	}
 
 	private void poke16(int address, int value) {
 		// Z80 is little-endian
-		computerImpl.poke8(address, value & 0xff);
-		computerImpl.poke8(address + 1, (value >> 8) & 0xff);
+		if (heat != null) {
+			++heat.write[(address >> 8) & 0xff];
+			++heat.write[((address + 1) >> 8) & 0xff];
+		}
+		memWrite(address, value & 0xff);
+		memWrite(address + 1, (value >> 8) & 0xff);
 		ticks += 6;
+		codeChanged(address);
+		codeChanged(address + 1);
+	}
+
+	// Forget predecoded/compiled instructions that include 'address'
+	private void codeChanged(int address) {
+		if (predecode != null) {
+			for (int n = 0; n < 4; ++n) {
+				predecode[(address - n) & 0xffff] = 0;
+			}
+		}
+		if (jit != null) {
+			jit.codeChanged(address);
+		}
 	}
 
 	//Interrupción
@@ -1823,33 +2157,38 @@ public class Z80 implements CPU {
 
 	public final void setBreakpoint(int address, boolean state) {
 		breakpointAt[address & 0xffff] = state;
+		if (state && jit != null) {
+			jit.codeChanged(address);
+		}
 	}
 
 	public void resetBreakpoints() {
 		Arrays.fill(breakpointAt, false);
 	}
 
-	public String specialCycle() { return spcl; }
+	public String specialCycle() { return SpecialCycle.name(spcl); }
+	public int specialCycleCode() { return spcl; }
 
 	public final int execute() {
 		ticks = 0;
+		int lines = intLines();
 		// Primero se comprueba NMI
-		if (activeNMI) {
-			activeNMI = false;
+		if ((lines & NMI_LINE) != 0) {
+			setIntLines(NMI_LINE, false);
 			lastFlagQ = false;
 			nmi();
-			spcl = "NMI";
+			spcl = SpecialCycle.NMI;
 			return -ticks;
 		}
 
 		// Ahora se comprueba si al final de la instrucción anterior se
 		// encontró una interrupción enmascarable y, de ser así, se procesa.
-		if (activeINT) {
+		if ((lines & INT_LINE) != 0) {
 			if (ffIFF1 && !pendingEI) {
 				lastFlagQ = false;
 				interruption();
 				if (!intrFetch) {
-					spcl = "INT";
+					spcl = SpecialCycle.INT;
 					return -ticks;
 				}
 			}
@@ -1859,6 +2198,15 @@ public class Z80 implements CPU {
 			computerImpl.breakpoint();
 		}
 
+		if (predecode != null && !intrFetch) {
+			long pd = predecode[regPC];
+			if (pd == 0) {
+				pd = predecode(regPC);
+			}
+			pfBytes = pd;
+			pfLen = (int)(pd >>> 56);
+		}
+
 		opCode = fetchOpcode();	// this may be fetching interrupt instruction
 
 		flagQ = false;
@@ -1866,6 +2214,7 @@ public class Z80 implements CPU {
 		decodeOpcode(opCode);
 
 		lastFlagQ = flagQ;
+		pfLen = 0;
 
 		// Si está pendiente la activación de la interrupciones y el
 		// código que se acaba de ejecutar no es el propio EI
@@ -1877,13 +2226,383 @@ public class Z80 implements CPU {
 			computerImpl.execDone();
 		}
 		if (intrFetch) {
-			spcl = "INT";
+			spcl = SpecialCycle.INT;
 			ticks = -ticks;
 		}
 		intrFetch = false;
 		return ticks;
 	}
 
+	// Fast-forward through HALT, up to 'budget' cycles, as long as
+	// no interrupt could be taken. Each skipped HALT cycle is an M1
+	// (4 T-states, R incremented). Returns 0 if not possible.
+	private int haltSkip(int budget) {
+		if (intrPending() || pendingEI || breakpointAt[regPC]) {
+			return 0;
+		}
+		int n = (budget + 3) / 4;
+		regR += n;
+		lastFlagQ = false;
+		return n * 4;
+	}
+
+	// true if NMI, or INT while enabled
+	private boolean intrPending() {
+		int lines = intLines();
+		return (lines & NMI_LINE) != 0 ||
+			((lines & INT_LINE) != 0 && ffIFF1);
+	}
+
+	// When enabled, runFor() will complete repeating block instructions
+	// (LDIR, LDDR, CPIR, CPDR) in a single execute(), as long as nothing
+	// could intervene between iterations. Results (cycles, flags, R, MEMPTR)
+	// are identical to executing each iteration separately.
+	public void setBlockBulk(boolean bulk) { blockBulk = bulk; }
+
+	// Continue a repeating LDIR/LDDR/CPIR/CPDR, whose first iteration
+	// has already been done (and PC rewound). Each iteration is what
+	// execute() would have done: re-fetch ED xx (2 M1 cycles), then the
+	// operation. Stops (leaving PC on the instruction) if an interrupt
+	// could be taken, at a breakpoint, when execDone() is wanted after each
+	// instruction, if the instruction overwrote itself, or when the
+	// runFor() budget is used up.
+	private void repeatBlock() {
+		int pc = regPC;
+		boolean more = true;
+		boolean smc = overwrote(pc);
+		for (;;) {
+			pendingEI = false;
+			if (!more || smc || stopRun || ticks >= blockBudget ||
+					breakpointAt[pc] || execDone || intrPending()) {
+				break;
+			}
+			lastFlagQ = flagQ;
+			flagQ = false;
+			regR += 2;
+			ticks += 8;
+			switch (opCode) {
+			case 0xB0:	// LDIR
+				ldi();
+				smc = overwrote(pc);
+				more = (flags() & PARITY_MASK) == PARITY_MASK;
+				break;
+			case 0xB8:	// LDDR
+				ldd();
+				smc = overwrote(pc);
+				more = (flags() & PARITY_MASK) == PARITY_MASK;
+				break;
+			case 0xB1:	// CPIR
+				cpi();
+				more = (flags() & PARITY_MASK) == PARITY_MASK
+					&& (flags() & ZERO_MASK) == 0;
+				break;
+			case 0xB9:	// CPDR
+				cpd();
+				more = (flags() & PARITY_MASK) == PARITY_MASK
+					&& (flags() & ZERO_MASK) == 0;
+				break;
+			}
+			if (more) {
+				memptr = pc + 1;
+				ticks += 5;
+			} else {
+				regPC = (pc + 2) & 0xffff;
+			}
+		}
+	}
+
+	// true if the last LDI/LDD of LDIR/LDDR wrote one of
+	// the two opcode bytes at 'pc'
+	private boolean overwrote(int pc) {
+		int de = getRegDE();
+		if (opCode == 0xB0) {
+			--de;
+		} else if (opCode == 0xB8) {
+			++de;
+		} else {
+			return false;
+		}
+		return ((de - pc) & 0xffff) < 2;
+	}
+
+	// When enabled, runFor() will translate frequently executed code
+	// into JVM bytecode and run that instead of interpreting it.
+	// Writes by the CPU are tracked, but the Computer must call
+	// flushCode() whenever memory changes by other means
+	// (bank switching, DMA, loading a program, etc). With a PageTable,
+	// only code in mapped pages is translated; without one, code is
+	// read with Computer.peek8(), which must not have side effects.
+	public void setCompile(boolean compile) {
+		if (!compile) {
+			jit = null;
+		} else if (jit == null) {
+			jit = new Z80Compiler(computerImpl, breakpointAt,
+						MethodHandles.lookup());
+			jit.pages = pageTable;
+		}
+	}
+
+	// When enabled, execute() remembers the bytes of each instruction
+	// by address, and fetches them from there instead of calling
+	// Computer.peek8() for each opcode, prefix and operand byte.
+	// As with setCompile(), flushCode() must be called if memory
+	// changes other than by the CPU.
+	public void setPredecode(boolean on) {
+		if (!on) {
+			predecode = null;
+		} else if (predecode == null) {
+			predecode = new long[65536];
+		}
+	}
+
+	// Read (up to 4 bytes of) the instruction at 'pc' into
+	// the predecode cache. The length need not be exact,
+	// fetch8() reads memory for any bytes not cached.
+	private long predecode(int pc) {
+		int op = memRead(pc);
+		int len = insnLen[op];
+		if (len == 0) {	// prefix
+			int op2 = memRead((pc + 1) & 0xffff);
+			if (op == 0xED) {
+				len = (op2 & 0xc7) == 0x43 ? 4 : 2;
+			} else if (op2 == 0xCB) {
+				len = 4;
+			} else if (op2 == 0xDD || op2 == 0xED || op2 == 0xFD) {
+				len = 4;	// prefix chain, at most 4 cached
+			} else {
+				len = Math.min(1 + insnLen[op2] + ixdLen[op2], 4);
+			}
+		}
+		long pd = (long)len << 56;
+		for (int n = 0; n < len; ++n) {
+			pd |= (long)memRead((pc + n) & 0xffff) << (n * 8);
+		}
+		predecode[pc] = pd;
+		return pd;
+	}
+
+	// When enabled, 8-bit arithmetic (ADD, ADC, SUB, SBC, CP, INC, DEC)
+	// only records its operands and result, and the flags are computed
+	// only if something reads them. Results are identical either way.
+	public void setLazyFlags(boolean lazy) {
+		flags();
+		lazyFlags = lazy;
+	}
+
+	// Discard all predecoded and compiled instructions.
+	public void flushCode() {
+		if (predecode != null) {
+			Arrays.fill(predecode, 0);
+		}
+		if (jit != null) {
+			jit.flush();
+		}
+	}
+
+	// Run the compiled block at PC, if there is one and nothing
+	// needs to happen before its first instruction. The block stops
+	// at the first instruction boundary at or past 'budget' cycles,
+	// as the interpreter would. Returns the cycles used, or 0 if
+	// the interpreter must be used.
+	private int runBlock(int budget) {
+		if (intrPending() || pendingEI ||
+				breakpointAt[regPC] || execDone) {
+			return 0;
+		}
+		Z80Compiler.Block blk = jit.lookup(regPC);
+		if (blk == null) {
+			return 0;
+		}
+		ticks = 0;
+		jit.dirty = false;
+		blk.run(this, budget);
+		return ticks;
+	}
+
+	public void setCycleListener(CycleListener lstn) { cycListener = lstn; }
+	public void setProfiler(Profiler prof) { this.prof = prof; }
+
+	// Access memory directly, instead of through the Computer,
+	// for pages mapped in 'pages'. null to use the Computer only.
+	public void setPageTable(PageTable pages) {
+		pageTable = pages;
+		if (jit != null) {
+			jit.pages = pages;
+			jit.flush();
+		}
+	}
+
+	private int memRead(int address) {
+		if (pageTable != null) {
+			return pageTable.peek8(address);
+		}
+		return computerImpl.peek8(address);
+	}
+
+	private void memWrite(int address, int value) {
+		if (pageTable != null) {
+			pageTable.poke8(address, value);
+		} else {
+			computerImpl.poke8(address, value);
+		}
+	}
+
+	private int inPort(int port) {
+		if (ports == null) {
+			return computerImpl.inPort(port);
+		}
+		long t0 = System.nanoTime();
+		int val = computerImpl.inPort(port);
+		ports.read(port, System.nanoTime() - t0);
+		return val;
+	}
+
+	private void outPort(int port, int value) {
+		if (ports == null) {
+			computerImpl.outPort(port, value);
+			return;
+		}
+		long t0 = System.nanoTime();
+		computerImpl.outPort(port, value);
+		ports.write(port, System.nanoTime() - t0);
+	}
+
+	public void stopRun() { stopRun = true; }
+	public int getRunCycles() { return runCy; }
+
+	// Execute instructions until at least 'tStates' clock cycles have
+	// been consumed, or stopRun() is called (e.g. from breakpoint()).
+	// Returns the number of cycles actually consumed. Special cycles
+	// are reported to the CycleListener, instead of a negative return.
+	public final int runFor(int tStates) {
+		if (prof != null) {
+			return runProfiled(tStates);
+		}
+		int cy = 0;
+		stopRun = false;
+		while (cy < tStates && !stopRun) {
+			runCy = cy;
+			if (halted) {
+				int t = haltSkip(tStates - cy);
+				if (t > 0) {
+					cy += t;
+					continue;
+				}
+			} else if (jit != null) {
+				int t = runBlock(tStates - cy);
+				if (t > 0) {
+					cy += t;
+					continue;
+				}
+			}
+			if (blockBulk) {
+				blockBudget = tStates - cy;
+			}
+			int t = execute();
+			if (t < 0) {
+				t = -t;
+				if (cycListener != null) {
+					cycListener.specialCycle(this, t);
+				}
+			}
+			cy += t;
+		}
+		blockBudget = 0;
+		runCy = 0;
+		return cy;
+	}
+
+	// runFor() with a Profiler. Separate, so that runFor() itself
+	// pays nothing. No compiled code or bulk block instructions here,
+	// so each instruction is counted.
+	private int runProfiled(int tStates) {
+		long[] count = prof.count;
+		long[] cycles = prof.cycles;
+		int mask = prof.mask;
+		CallGraph cg = prof.calls;
+		OpcodeMix mix = prof.mix;
+		heat = prof.heat;
+		ports = prof.ports;
+		int cy = 0;
+		stopRun = false;
+		while (cy < tStates && !stopRun) {
+			runCy = cy;
+			int pc = regPC & mask;
+			if (halted) {
+				int t = haltSkip(tStates - cy);
+				if (t > 0) {
+					cycles[pc] += t;
+					if (cg != null) {
+						cg.tick(t);
+					}
+					cy += t;
+					continue;
+				}
+			}
+			boolean h = halted;
+			int sp = regSP;
+			int mi = -1;
+			boolean timed = false;
+			if (mix != null && !h) {
+				mi = mixIndex(regPC);
+				timed = mix.sample();
+			}
+			long t0 = timed ? System.nanoTime() : 0;
+			int t = execute();
+			long ns = timed ? System.nanoTime() - t0 : -1;
+			int op = opCode;
+			if (t < 0) {
+				t = -t;
+				op = CallGraph.INTR;
+				if (cycListener != null) {
+					cycListener.specialCycle(this, t);
+				}
+			} else if (!h) {
+				++count[pc];
+				if (mi >= 0) {
+					mix.add(mi, ns);
+				}
+			}
+			if (ports != null) {
+				ports.charge(t);
+			}
+			if (cg != null) {
+				cg.step(t, sp, regSP, op, regPC);
+			}
+			cycles[pc] += t;
+			cy += t;
+		}
+		heat = null;
+		ports = null;
+		runCy = 0;
+		return cy;
+	}
+
+	// OpcodeMix index of the instruction at 'pc'
+	private int mixIndex(int pc) {
+		int op = memRead(pc);
+		int pre;
+		switch (op) {
+		case 0xcb:
+			pre = OpcodeMix.CB;
+			break;
+		case 0xed:
+			pre = OpcodeMix.ED;
+			break;
+		case 0xdd:
+		case 0xfd:
+			pre = op == 0xdd ? OpcodeMix.DD : OpcodeMix.FD;
+			if (memRead((pc + 1) & 0xffff) == 0xcb) {
+				pre = op == 0xdd ? OpcodeMix.DDCB : OpcodeMix.FDCB;
+				pc += 2;	// skip displacement
+			}
+			break;
+		default:
+			return op;
+		}
+		return pre * 256 + memRead((pc + 1) & 0xffff);
+	}
+
 	private void decodeOpcode(int opCode) {
 
 		switch (opCode) {
@@ -1921,7 +2640,7 @@ public class Z80 implements CPU {
 				if (carryFlag) {
 					regA |= CARRY_MASK;
 				}
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
 				flagQ = true;
 				break;
 			}
@@ -1968,7 +2687,7 @@ public class Z80 implements CPU {
 				if (carryFlag) {
 					regA |= SIGN_MASK;
 				}
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
 				flagQ = true;
 				break;
 			}
@@ -2016,7 +2735,7 @@ public class Z80 implements CPU {
 				if (oldCarry) {
 					regA |= CARRY_MASK;
 				}
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
 				flagQ = true;
 				break;
 			}
@@ -2060,13 +2779,13 @@ public class Z80 implements CPU {
 				if (oldCarry) {
 					regA |= SIGN_MASK;
 				}
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (regA & FLAG_53_MASK);
 				flagQ = true;
 				break;
 			}
 			case 0x20: {     /* JR NZ,e */
 				byte offset = (byte) fetch8();
-				if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & ZERO_MASK) == 0) {
 					ticks += 5;
 					regPC = memptr = (regPC + offset) & 0xffff;
 				}
@@ -2104,7 +2823,7 @@ public class Z80 implements CPU {
 			}
 			case 0x28: {     /* JR Z,e */
 				byte offset = (byte) fetch8();
-				if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+				if ((flags() & ZERO_MASK) != 0) {
 					ticks += 5;
 					regPC = memptr = (regPC + offset) & 0xffff;
 				}
@@ -2140,7 +2859,7 @@ public class Z80 implements CPU {
 			}
 			case 0x2F: {     /* CPL */
 				regA ^= 0xff;
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | HALFCARRY_MASK
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | HALFCARRY_MASK
 					| (regA & FLAG_53_MASK) | ADDSUB_MASK;
 				flagQ = true;
 				break;
@@ -2187,9 +2906,9 @@ public class Z80 implements CPU {
 				break;
 			}
 			case 0x37: {     /* SCF */
-				int regQ = lastFlagQ ? sz5h3pnFlags : 0;
+				int regQ = lastFlagQ ? flags() : 0;
 				carryFlag = true;
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (((regQ ^ sz5h3pnFlags) | regA) & FLAG_53_MASK);
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (((regQ ^ flags()) | regA) & FLAG_53_MASK);
 				flagQ = true;
 				break;
 			}
@@ -2229,8 +2948,8 @@ public class Z80 implements CPU {
 				break;
 			}
 			case 0x3F: {     /* CCF */
-				int regQ = lastFlagQ ? sz5h3pnFlags : 0;
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZP_MASK) | (((regQ ^ sz5h3pnFlags) | regA) & FLAG_53_MASK);
+				int regQ = lastFlagQ ? flags() : 0;
+				sz5h3pnFlags = (flags() & FLAG_SZP_MASK) | (((regQ ^ flags()) | regA) & FLAG_53_MASK);
 				if (carryFlag) {
 					sz5h3pnFlags |= HALFCARRY_MASK;
 				}
@@ -2746,7 +3465,7 @@ public class Z80 implements CPU {
 			}
 			case 0xC0: {     /* RET NZ */
 				++ticks;
-				if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & ZERO_MASK) == 0) {
 					regPC = memptr = pop();
 				}
 				break;
@@ -2757,7 +3476,7 @@ public class Z80 implements CPU {
 			}
 			case 0xC2: {     /* JP NZ,nn */
 				memptr = fetch16();
-				if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & ZERO_MASK) == 0) {
 					regPC = memptr;
 					break;
 				}
@@ -2769,7 +3488,7 @@ public class Z80 implements CPU {
 			}
 			case 0xC4: {     /* CALL NZ,nn */
 				memptr = fetch16();
-				if ((sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & ZERO_MASK) == 0) {
 					++ticks;
 					push(regPC);
 					regPC = memptr;
@@ -2794,7 +3513,7 @@ public class Z80 implements CPU {
 			}
 			case 0xC8: {     /* RET Z */
 				++ticks;
-				if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+				if ((flags() & ZERO_MASK) != 0) {
 					regPC = memptr = pop();
 				}
 				break;
@@ -2805,7 +3524,7 @@ public class Z80 implements CPU {
 			}
 			case 0xCA: {     /* JP Z,nn */
 				memptr = fetch16();
-				if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+				if ((flags() & ZERO_MASK) != 0) {
 					regPC = memptr;
 					break;
 				}
@@ -2817,7 +3536,7 @@ public class Z80 implements CPU {
 			}
 			case 0xCC: {     /* CALL Z,nn */
 				memptr = fetch16();
-				if ((sz5h3pnFlags & ZERO_MASK) != 0) {
+				if ((flags() & ZERO_MASK) != 0) {
 					++ticks;
 					push(regPC);
 					regPC = memptr;
@@ -2864,7 +3583,7 @@ public class Z80 implements CPU {
 			case 0xD3: {     /* OUT (n),A */
 				int work8 = fetch8();
 				memptr = regA << 8;
-				computerImpl.outPort(memptr | work8, regA);
+				outPort(memptr | work8, regA);
 				ticks += 4;
 				memptr |= ((work8 + 1) & 0xff);
 				break;
@@ -2937,7 +3656,7 @@ public class Z80 implements CPU {
 			}
 			case 0xDB: {     /* IN A,(n) */
 				memptr = (regA << 8) | fetch8();
-				regA = computerImpl.inPort(memptr++);
+				regA = inPort(memptr++);
 				ticks += 4;
 				break;
 			}
@@ -2967,7 +3686,7 @@ public class Z80 implements CPU {
 			}
 			case 0xE0:       /* RET PO */
 				++ticks;
-				if ((sz5h3pnFlags & PARITY_MASK) == 0) {
+				if ((flags() & PARITY_MASK) == 0) {
 					regPC = memptr = pop();
 				}
 				break;
@@ -2976,7 +3695,7 @@ public class Z80 implements CPU {
 				break;
 			case 0xE2:       /* JP PO,nn */
 				memptr = fetch16();
-				if ((sz5h3pnFlags & PARITY_MASK) == 0) {
+				if ((flags() & PARITY_MASK) == 0) {
 					regPC = memptr;
 					break;
 				}
@@ -2996,7 +3715,7 @@ public class Z80 implements CPU {
 			}
 			case 0xE4:       /* CALL PO,nn */
 				memptr = fetch16();
-				if ((sz5h3pnFlags & PARITY_MASK) == 0) {
+				if ((flags() & PARITY_MASK) == 0) {
 					++ticks;
 					push(regPC);
 					regPC = memptr;
@@ -3017,7 +3736,7 @@ public class Z80 implements CPU {
 				break;
 			case 0xE8:       /* RET PE */
 				++ticks;
-				if ((sz5h3pnFlags & PARITY_MASK) != 0) {
+				if ((flags() & PARITY_MASK) != 0) {
 					regPC = memptr = pop();
 				}
 				break;
@@ -3026,7 +3745,7 @@ public class Z80 implements CPU {
 				break;
 			case 0xEA:       /* JP PE,nn */
 				memptr = fetch16();
-				if ((sz5h3pnFlags & PARITY_MASK) != 0) {
+				if ((flags() & PARITY_MASK) != 0) {
 					regPC = memptr;
 					break;
 				}
@@ -3043,7 +3762,7 @@ public class Z80 implements CPU {
 			}
 			case 0xEC:       /* CALL PE,nn */
 				memptr = fetch16();
-				if ((sz5h3pnFlags & PARITY_MASK) != 0) {
+				if ((flags() & PARITY_MASK) != 0) {
 					++ticks;
 					push(regPC);
 					regPC = memptr;
@@ -3063,7 +3782,7 @@ public class Z80 implements CPU {
 				break;
 			case 0xF0:       /* RET P */
 				++ticks;
-				if (sz5h3pnFlags < SIGN_MASK) {
+				if (flags() < SIGN_MASK) {
 					regPC = memptr = pop();
 				}
 				break;
@@ -3072,7 +3791,7 @@ public class Z80 implements CPU {
 				break;
 			case 0xF2:       /* JP P,nn */
 				memptr = fetch16();
-				if (sz5h3pnFlags < SIGN_MASK) {
+				if (flags() < SIGN_MASK) {
 					regPC = memptr;
 					break;
 				}
@@ -3082,7 +3801,7 @@ public class Z80 implements CPU {
 				break;
 			case 0xF4:       /* CALL P,nn */
 				memptr = fetch16();
-				if (sz5h3pnFlags < SIGN_MASK) {
+				if (flags() < SIGN_MASK) {
 					++ticks;
 					push(regPC);
 					regPC = memptr;
@@ -3103,7 +3822,7 @@ public class Z80 implements CPU {
 				break;
 			case 0xF8:       /* RET M */
 				++ticks;
-				if (sz5h3pnFlags > 0x7f) {
+				if (flags() > 0x7f) {
 					regPC = memptr = pop();
 				}
 				break;
@@ -3113,7 +3832,7 @@ public class Z80 implements CPU {
 				break;
 			case 0xFA:       /* JP M,nn */
 				memptr = fetch16();
-				if (sz5h3pnFlags > 0x7f) {
+				if (flags() > 0x7f) {
 					regPC = memptr;
 					break;
 				}
@@ -3124,7 +3843,7 @@ public class Z80 implements CPU {
 				break;
 			case 0xFC:       /* CALL M,nn */
 				memptr = fetch16();
-				if (sz5h3pnFlags > 0x7f) {
+				if (flags() > 0x7f) {
 					++ticks;
 					push(regPC);
 					regPC = memptr;
@@ -3457,7 +4176,7 @@ public class Z80 implements CPU {
 			case 0x46: {     /* BIT 0,(HL) */
 				int work16 = getRegHL();
 				bit(0x01, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -3493,7 +4212,7 @@ public class Z80 implements CPU {
 			case 0x4E: {     /* BIT 1,(HL) */
 				int work16 = getRegHL();
 				bit(0x02, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -3529,7 +4248,7 @@ public class Z80 implements CPU {
 			case 0x56: {     /* BIT 2,(HL) */
 				int work16 = getRegHL();
 				bit(0x04, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -3565,7 +4284,7 @@ public class Z80 implements CPU {
 			case 0x5E: {     /* BIT 3,(HL) */
 				int work16 = getRegHL();
 				bit(0x08, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -3601,7 +4320,7 @@ public class Z80 implements CPU {
 			case 0x66: {     /* BIT 4,(HL) */
 				int work16 = getRegHL();
 				bit(0x10, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -3637,7 +4356,7 @@ public class Z80 implements CPU {
 			case 0x6E: {     /* BIT 5,(HL) */
 				int work16 = getRegHL();
 				bit(0x20, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -3673,7 +4392,7 @@ public class Z80 implements CPU {
 			case 0x76: {     /* BIT 6,(HL) */
 				int work16 = getRegHL();
 				bit(0x40, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -3709,7 +4428,7 @@ public class Z80 implements CPU {
 			case 0x7E: {     /* BIT 7,(HL) */
 				int work16 = getRegHL();
 				bit(0x80, peek8(work16));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((memptr >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -5142,7 +5861,7 @@ public class Z80 implements CPU {
 			case 0x46:
 			case 0x47: {     /* BIT 0,(IX+d) */
 				bit(0x01, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -5156,7 +5875,7 @@ public class Z80 implements CPU {
 			case 0x4E:
 			case 0x4F: {     /* BIT 1,(IX+d) */
 				bit(0x02, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -5170,7 +5889,7 @@ public class Z80 implements CPU {
 			case 0x56:
 			case 0x57: {     /* BIT 2,(IX+d) */
 				bit(0x04, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -5184,7 +5903,7 @@ public class Z80 implements CPU {
 			case 0x5E:
 			case 0x5F: {     /* BIT 3,(IX+d) */
 				bit(0x08, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -5198,7 +5917,7 @@ public class Z80 implements CPU {
 			case 0x66:
 			case 0x67: {     /* BIT 4,(IX+d) */
 				bit(0x10, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -5212,7 +5931,7 @@ public class Z80 implements CPU {
 			case 0x6E:
 			case 0x6F: {     /* BIT 5,(IX+d) */
 				bit(0x20, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -5226,7 +5945,7 @@ public class Z80 implements CPU {
 			case 0x76:
 			case 0x77: {     /* BIT 6,(IX+d) */
 				bit(0x40, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -5240,7 +5959,7 @@ public class Z80 implements CPU {
 			case 0x7E:
 			case 0x7F: {     /* BIT 7,(IX+d) */
 				bit(0x80, peek8(address));
-				sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZHP_MASK)
+				sz5h3pnFlags = (flags() & FLAG_SZHP_MASK)
 					| ((address >>> 8) & FLAG_53_MASK);
 				++ticks;
 				break;
@@ -6031,7 +6750,7 @@ public class Z80 implements CPU {
 		switch (opCode) {
 			case 0x40: {     /* IN B,(C) */
 				memptr = getRegBC();
-				regB = computerImpl.inPort(memptr++);
+				regB = inPort(memptr++);
 				ticks += 4;
 				sz5h3pnFlags = sz53pn_addTable[regB];
 				flagQ = true;
@@ -6039,7 +6758,7 @@ public class Z80 implements CPU {
 			}
 			case 0x41: {     /* OUT (C),B */
 				memptr = getRegBC();
-				computerImpl.outPort(memptr++, regB);
+				outPort(memptr++, regB);
 				ticks += 4;
 				break;
 			}
@@ -6097,7 +6816,7 @@ public class Z80 implements CPU {
 			}
 			case 0x48: {     /* IN C,(C) */
 				memptr = getRegBC();
-				regC = computerImpl.inPort(memptr++);
+				regC = inPort(memptr++);
 				ticks += 4;
 				sz5h3pnFlags = sz53pn_addTable[regC];
 				flagQ = true;
@@ -6105,7 +6824,7 @@ public class Z80 implements CPU {
 			}
 			case 0x49: {     /* OUT (C),C */
 				memptr = getRegBC();
-				computerImpl.outPort(memptr++, regC);
+				outPort(memptr++, regC);
 				ticks += 4;
 				break;
 			}
@@ -6126,7 +6845,7 @@ public class Z80 implements CPU {
 			}
 			case 0x50: {     /* IN D,(C) */
 				memptr = getRegBC();
-				regD = computerImpl.inPort(memptr++);
+				regD = inPort(memptr++);
 				ticks += 4;
 				sz5h3pnFlags = sz53pn_addTable[regD];
 				flagQ = true;
@@ -6134,7 +6853,7 @@ public class Z80 implements CPU {
 			}
 			case 0x51: {     /* OUT (C),D */
 				memptr = getRegBC();
-				computerImpl.outPort(memptr++, regD);
+				outPort(memptr++, regD);
 				ticks += 4;
 				break;
 			}
@@ -6165,7 +6884,7 @@ public class Z80 implements CPU {
 			}
 			case 0x58: {     /* IN E,(C) */
 				memptr = getRegBC();
-				regE = computerImpl.inPort(memptr++);
+				regE = inPort(memptr++);
 				ticks += 4;
 				sz5h3pnFlags = sz53pn_addTable[regE];
 				flagQ = true;
@@ -6173,7 +6892,7 @@ public class Z80 implements CPU {
 			}
 			case 0x59: {     /* OUT (C),E */
 				memptr = getRegBC();
-				computerImpl.outPort(memptr++, regE);
+				outPort(memptr++, regE);
 				ticks += 4;
 				break;
 			}
@@ -6204,7 +6923,7 @@ public class Z80 implements CPU {
 			}
 			case 0x60: {     /* IN H,(C) */
 				memptr = getRegBC();
-				regH = computerImpl.inPort(memptr++);
+				regH = inPort(memptr++);
 				ticks += 4;
 				sz5h3pnFlags = sz53pn_addTable[regH];
 				flagQ = true;
@@ -6212,7 +6931,7 @@ public class Z80 implements CPU {
 			}
 			case 0x61: {     /* OUT (C),H */
 				memptr = getRegBC();
-				computerImpl.outPort(memptr++, regH);
+				outPort(memptr++, regH);
 				ticks += 4;
 				break;
 			}
@@ -6232,7 +6951,7 @@ public class Z80 implements CPU {
 			}
 			case 0x68: {     /* IN L,(C) */
 				memptr = getRegBC();
-				regL = computerImpl.inPort(memptr++);
+				regL = inPort(memptr++);
 				ticks += 4;
 				sz5h3pnFlags = sz53pn_addTable[regL];
 				flagQ = true;
@@ -6240,7 +6959,7 @@ public class Z80 implements CPU {
 			}
 			case 0x69: {     /* OUT (C),L */
 				memptr = getRegBC();
-				computerImpl.outPort(memptr++, regL);
+				outPort(memptr++, regL);
 				ticks += 4;
 				break;
 			}
@@ -6260,7 +6979,7 @@ public class Z80 implements CPU {
 			}
 			case 0x70: {     /* IN F,(C) */
 				memptr = getRegBC();
-				int inPort = computerImpl.inPort(memptr++);
+				int inPort = inPort(memptr++);
 				ticks += 4;
 				// TODO: unclear if this sets flags according to byte,
 				// or if it simply stores the byte into the flags.
@@ -6273,7 +6992,7 @@ public class Z80 implements CPU {
 			}
 			case 0x71: {     /* OUT (C),F */
 				memptr = getRegBC();
-				computerImpl.outPort(memptr++, getFlags());
+				outPort(memptr++, getFlags());
 				ticks += 4;
 				break;
 			}
@@ -6289,7 +7008,7 @@ public class Z80 implements CPU {
 			}
 			case 0x78: {     /* IN A,(C) */
 				memptr = getRegBC();
-				regA = computerImpl.inPort(memptr++);
+				regA = inPort(memptr++);
 				ticks += 4;
 				sz5h3pnFlags = sz53pn_addTable[regA];
 				flagQ = true;
@@ -6297,7 +7016,7 @@ public class Z80 implements CPU {
 			}
 			case 0x79: {     /* OUT (C),A */
 				memptr = getRegBC();
-				computerImpl.outPort(memptr++, regA);
+				outPort(memptr++, regA);
 				ticks += 4;
 				break;
 			}
@@ -6345,20 +7064,26 @@ public class Z80 implements CPU {
 			}
 			case 0xB0: {     /* LDIR */
 				ldi();
-				if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK) {
+				if ((flags() & PARITY_MASK) == PARITY_MASK) {
 					regPC = (regPC - 2) & 0xffff;
 					memptr = regPC + 1;
 					ticks += 5;
+					if (blockBudget > 0 && !intrFetch) {
+						repeatBlock();
+					}
 				}
 				break;
 			}
 			case 0xB1: {     /* CPIR */
 				cpi();
-				if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK
-					&& (sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & PARITY_MASK) == PARITY_MASK
+					&& (flags() & ZERO_MASK) == 0) {
 					regPC = (regPC - 2) & 0xffff;
 					memptr = regPC + 1;
 					ticks += 5;
+					if (blockBudget > 0 && !intrFetch) {
+						repeatBlock();
+					}
 				}
 				break;
 			}
@@ -6380,20 +7105,26 @@ public class Z80 implements CPU {
 			}
 			case 0xB8: {     /* LDDR */
 				ldd();
-				if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK) {
+				if ((flags() & PARITY_MASK) == PARITY_MASK) {
 					regPC = (regPC - 2) & 0xffff;
 					memptr = regPC + 1;
 					ticks += 5;
+					if (blockBudget > 0 && !intrFetch) {
+						repeatBlock();
+					}
 				}
 				break;
 			}
 			case 0xB9: {     /* CPDR */
 				cpd();
-				if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK
-					&& (sz5h3pnFlags & ZERO_MASK) == 0) {
+				if ((flags() & PARITY_MASK) == PARITY_MASK
+					&& (flags() & ZERO_MASK) == 0) {
 					regPC = (regPC - 2) & 0xffff;
 					memptr = regPC + 1;
 					ticks += 5;
+					if (blockBudget > 0 && !intrFetch) {
+						repeatBlock();
+					}
 				}
 				break;
 			}
@@ -6429,13 +7160,13 @@ public class Z80 implements CPU {
 		s += String.format("IX=%04x IY=%04x\n", getRegIX(), getRegIY());
 		s += String.format("HL=%04x DE=%04x BC=%04x\n", getRegHL(), getRegDE(), getRegBC());
 		s += String.format("A=%02x F=%s%s%s%s%s%s%s%s\n", regA,
-			(sz5h3pnFlags & SIGN_MASK) == 0 ? "s" : "S",
-			(sz5h3pnFlags & ZERO_MASK) == 0 ? "z" : "Z",
-			(sz5h3pnFlags & BIT5_MASK) == 0 ? "." : "5",
-			(sz5h3pnFlags & HALFCARRY_MASK) == 0 ? "h" : "H",
-			(sz5h3pnFlags & BIT3_MASK) == 0 ? "." : "3",
-			(sz5h3pnFlags & PARITY_MASK) == 0 ? "p" : "P",
-			(sz5h3pnFlags & ADDSUB_MASK) == 0 ? "n" : "N",
+			(flags() & SIGN_MASK) == 0 ? "s" : "S",
+			(flags() & ZERO_MASK) == 0 ? "z" : "Z",
+			(flags() & BIT5_MASK) == 0 ? "." : "5",
+			(flags() & HALFCARRY_MASK) == 0 ? "h" : "H",
+			(flags() & BIT3_MASK) == 0 ? "." : "3",
+			(flags() & PARITY_MASK) == 0 ? "p" : "P",
+			(flags() & ADDSUB_MASK) == 0 ? "n" : "N",
 			carryFlag ? "c" : "C"
 			);
 		s += String.format("HL'=%04x DE'=%04x BC'=%04x\n", getRegHLx(), getRegDEx(), getRegBCx());
@@ -0,0 +1,946 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Translates frequently executed Z80 code into JVM bytecode.
+//
+// A block is a run of unprefixed instructions starting at some PC,
+// ending with a jump, call or return (included), or just before an
+// instruction that is left to the interpreter (prefixed, I/O, HALT,
+// EI, etc). Each block becomes a hidden class, nestmate of Z80, that
+// works directly on the register fields and calls the same private
+// helpers as Z80.decodeOpcode(), so flags, T-states, R and MEMPTR
+// come out the same as interpreting. PC, R and T-states are brought up
+// to date when the block exits. After each instruction, the block exits
+// if the runFor() budget is used up or an interrupt could be taken, so
+// it stops where the interpreter would. Any write that hits compiled
+// code discards the blocks covering it, and ends the running block after
+// the instruction that did the write.
+//
+// Code is read from the PageTable (only mapped pages are translated),
+// or with Computer.peek8() if there is none.
+final class Z80Compiler {
+	interface Block {
+		// Run, stopping once 'budget' T-states are used
+		void run(Z80 cpu, int budget);
+	}
+
+	private static final int THRESHOLD = 32;	// visits before compiling
+	private static final int MAX_LEN = 64;	// bytes of guest code per block
+
+	private static final String Z80 = "z80core/Z80";
+	private static final String SELF = "z80core/Z80Compiler";
+
+	// Opcodes used
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ILOAD_2 = 0x1c;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int DUP = 0x59;
+	private static final int SWAP = 0x5f;
+	private static final int IADD = 0x60;
+	private static final int ISHL = 0x78;
+	private static final int IAND = 0x7e;
+	private static final int IOR = 0x80;
+	private static final int IFEQ = 0x99;
+	private static final int IFNE = 0x9a;
+	private static final int IF_ICMPGE = 0xa2;
+	private static final int GOTO = 0xa7;
+	private static final int RETURN = 0xb1;
+	private static final int GETFIELD = 0xb4;
+	private static final int PUTFIELD = 0xb5;
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESPECIAL = 0xb7;
+
+	private static final String[] reg8 = {
+		"regB", "regC", "regD", "regE", "regH", "regL", null, "regA" };
+	private static final String[] reg16 = { "BC", "DE", "HL", null };
+	private static final String[] alu = {
+		"add", "adc", "sub", "sbc", "and", "xor", "or", "cp" };
+
+	private final Computer computerImpl;
+	private final boolean[] breakpointAt;
+	private final MethodHandles.Lookup lookup;
+
+	private final Block[] blocks = new Block[65536];
+	private final byte[] size = new byte[65536];
+	private final byte[] hits = new byte[65536];
+	private final boolean[] code = new boolean[65536];
+	// set when a write discarded some block
+	boolean dirty = false;
+	PageTable pages = null;	// the CPU's, if any
+	private boolean broken = false;	// translation failed, stop trying
+
+	// translation in progress
+	private Pool pool;
+	private Bytes bc;
+	private ArrayList<Integer> frames;
+	private int tStates;	// constant part of T-states so far
+	private int m1s;	// instructions (M1 cycles) so far
+	private boolean flagQ;	// last instruction changed flags
+	private boolean done;	// block ended by the instruction
+
+	public Z80Compiler(Computer computerImpl, boolean[] breakpointAt,
+			MethodHandles.Lookup lookup) {
+		this.computerImpl = computerImpl;
+		this.breakpointAt = breakpointAt;
+		this.lookup = lookup;
+	}
+
+	// Block to run at 'pc', if any. Compiles the block once
+	// the address has been visited enough.
+	public Block lookup(int pc) {
+		Block blk = blocks[pc];
+		if (blk == null && !broken && ++hits[pc] == THRESHOLD) {
+			blk = compile(pc);
+			if (blk == null) {
+				// not translatable, try again (much) later
+				hits[pc] = Byte.MIN_VALUE;
+			}
+		}
+		return blk;
+	}
+
+	// Memory at 'address' was changed (or a breakpoint set there)
+	public void codeChanged(int address) {
+		address &= 0xffff;
+		if (!code[address]) {
+			return;
+		}
+		int lo = Math.max(0, address - MAX_LEN + 1);
+		for (int a = lo; a <= address; ++a) {
+			if (blocks[a] != null && a + size[a] > address) {
+				Arrays.fill(code, a, a + size[a], false);
+				blocks[a] = null;
+				hits[a] = 0;
+				dirty = true;
+			}
+		}
+		// re-mark bytes still covered by other blocks
+		int hi = Math.min(65536, address + MAX_LEN);
+		for (int a = Math.max(0, lo - MAX_LEN); a < hi; ++a) {
+			if (blocks[a] != null) {
+				Arrays.fill(code, a, a + size[a], true);
+			}
+		}
+	}
+
+	public void flush() {
+		Arrays.fill(blocks, null);
+		Arrays.fill(hits, (byte)0);
+		Arrays.fill(code, false);
+	}
+
+	// Code byte at 'address', or -1 if it can't be read
+	// without side effects (not mapped in the PageTable)
+	private int mem(int address) {
+		if (pages != null) {
+			return pages.peekMapped(address);
+		}
+		return computerImpl.peek8(address) & 0xff;
+	}
+
+	// Number of operand bytes of unprefixed opcode 'op'
+	private static int operands(int op) {
+		switch (op) {
+		case 0x01: case 0x11: case 0x21: case 0x31:	// LD rr,nn
+		case 0x22: case 0x2a: case 0x32: case 0x3a:	// LD (nn)...
+		case 0xc3: case 0xcd:	// JP nn, CALL nn
+		case 0xc2: case 0xca: case 0xd2: case 0xda:	// JP cc,nn
+		case 0xe2: case 0xea: case 0xf2: case 0xfa:
+		case 0xc4: case 0xcc: case 0xd4: case 0xdc:	// CALL cc,nn
+		case 0xe4: case 0xec: case 0xf4: case 0xfc:
+			return 2;
+		case 0x06: case 0x0e: case 0x16: case 0x1e:	// LD r,n
+		case 0x26: case 0x2e: case 0x36: case 0x3e:
+		case 0x10: case 0x18: case 0x20: case 0x28:	// DJNZ, JR
+		case 0x30: case 0x38:
+		case 0xc6: case 0xce: case 0xd6: case 0xde:	// ALU A,n
+		case 0xe6: case 0xee: case 0xf6: case 0xfe:
+		case 0xd3: case 0xdb:	// OUT (n),A, IN A,(n)
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	private Block compile(int start) {
+		pool = new Pool();
+		bc = new Bytes();
+		frames = new ArrayList<Integer>();
+		tStates = 0;
+		m1s = 0;
+		flagQ = false;
+		done = false;
+		int pc = start;
+		while (!done) {
+			if (pc + 3 > 65536 || pc + 3 - start > MAX_LEN ||
+					(pc != start && breakpointAt[pc])) {
+				break;
+			}
+			int op = mem(pc);
+			int len = op < 0 ? 0 : insn(pc, op);
+			if (len == 0) {
+				break;
+			}
+			pc += len;
+		}
+		if (pc == start) {
+			return null;
+		}
+		if (!done) {
+			exit(pc);
+		}
+		bc.u1(RETURN);
+		Block blk;
+		try {
+			MethodHandles.Lookup lk = lookup.defineHiddenClass(classFile(),
+				true, MethodHandles.Lookup.ClassOption.NESTMATE);
+			blk = (Block)lk.findConstructor(lk.lookupClass(),
+				MethodType.methodType(void.class)).invoke();
+		} catch (Throwable t) {
+			// a translator bug, the interpreter is always right
+			System.err.format("Z80 compile failed at %04x: %s\n", start, t);
+			broken = true;
+			blk = null;
+		}
+		pool = null;
+		bc = null;
+		frames = null;
+		if (blk != null) {
+			blocks[start] = blk;
+			size[start] = (byte)(pc - start);
+			Arrays.fill(code, start, pc, true);
+		}
+		return blk;
+	}
+
+	// Translate one instruction, returning its length
+	// or 0 if it must be left to the interpreter.
+	private int insn(int pc, int op) {
+		int len = 1;
+		int t = 4;	// M1
+		boolean q = false;
+		boolean write = false;
+		int r = (op >> 3) & 7;
+		int s = op & 7;
+		int n = 0;
+		int nn = 0;
+		int k = operands(op);
+		if (k > 0) {
+			n = mem(pc + 1);
+			nn = k > 1 ? mem(pc + 2) : 0;
+			if (n < 0 || nn < 0) {
+				return 0;
+			}
+			nn = (nn << 8) | n;
+		}
+		switch (op) {
+		case 0x00:	// NOP
+			break;
+		case 0x01: case 0x11: case 0x21:	// LD rr,nn
+			len = 3;
+			t += 6;
+			cpu();
+			iconst(nn);
+			call("setReg" + reg16[op >> 4], "(I)V");
+			break;
+		case 0x31:	// LD SP,nn
+			len = 3;
+			t += 6;
+			set("regSP", nn);
+			break;
+		case 0x03: case 0x13: case 0x23:	// INC rr
+		case 0x0b: case 0x1b: case 0x2b:	// DEC rr
+			t += 2;
+			cpu();
+			call(((op & 0x08) == 0 ? "incReg" : "decReg") + reg16[op >> 4], "()V");
+			break;
+		case 0x33: case 0x3b:	// INC SP, DEC SP
+			t += 2;
+			cpu();
+			bc.u1(DUP);
+			get("regSP");
+			iconst(op == 0x33 ? 1 : -1);
+			bc.u1(IADD);
+			iconst(0xffff);
+			bc.u1(IAND);
+			put("regSP");
+			break;
+		case 0x04: case 0x0c: case 0x14: case 0x1c:	// INC r
+		case 0x24: case 0x2c: case 0x3c:
+		case 0x05: case 0x0d: case 0x15: case 0x1d:	// DEC r
+		case 0x25: case 0x2d: case 0x3d:
+			cpu();
+			cpu();
+			cpu();
+			get(reg8[r]);
+			call((op & 1) == 0 ? "inc8" : "dec8", "(I)I");
+			put(reg8[r]);
+			q = true;
+			break;
+		case 0x06: case 0x0e: case 0x16: case 0x1e:	// LD r,n
+		case 0x26: case 0x2e: case 0x3e:
+			len = 2;
+			t += 3;
+			set(reg8[r], n);
+			break;
+		case 0x36:	// LD (HL),n
+			len = 2;
+			t += 3;
+			cpu();
+			cpu();
+			call("getRegHL", "()I");
+			iconst(n);
+			call("poke8", "(II)V");
+			write = true;
+			break;
+		case 0x09: case 0x19: case 0x29: case 0x39:	// ADD HL,rr
+			t += 7;
+			cpu();
+			cpu();
+			cpu();
+			call("getRegHL", "()I");
+			if (op == 0x39) {
+				cpu();
+				get("regSP");
+			} else {
+				cpu();
+				call("getReg" + reg16[op >> 4], "()I");
+			}
+			call("add16", "(II)I");
+			call("setRegHL", "(I)V");
+			q = true;
+			break;
+		case 0x02: case 0x12:	// LD (BC),A / LD (DE),A
+			cpu();
+			cpu();
+			call("getReg" + reg16[op >> 4], "()I");
+			cpu();
+			get("regA");
+			call("poke8", "(II)V");
+			cpu();
+			cpu();
+			get("regA");
+			iconst(8);
+			bc.u1(ISHL);
+			cpu();
+			get(op == 0x02 ? "regC" : "regE");
+			iconst(1);
+			bc.u1(IADD);
+			iconst(0xff);
+			bc.u1(IAND);
+			bc.u1(IOR);
+			put("memptr");
+			write = true;
+			break;
+		case 0x0a: case 0x1a:	// LD A,(BC) / LD A,(DE)
+			cpu();
+			cpu();
+			call("getReg" + reg16[op >> 4], "()I");
+			iconst(1);
+			bc.u1(IADD);
+			put("memptr");
+			cpu();
+			cpu();
+			cpu();
+			call("getReg" + reg16[op >> 4], "()I");
+			call("peek8", "(I)I");
+			put("regA");
+			break;
+		case 0x32:	// LD (nn),A
+			len = 3;
+			t += 6;
+			set("memptr", nn);
+			cpu();
+			iconst(nn);
+			cpu();
+			get("regA");
+			call("poke8", "(II)V");
+			cpu();
+			cpu();
+			get("regA");
+			iconst(8);
+			bc.u1(ISHL);
+			iconst((nn + 1) & 0xff);
+			bc.u1(IOR);
+			put("memptr");
+			write = true;
+			break;
+		case 0x3a:	// LD A,(nn)
+			len = 3;
+			t += 6;
+			cpu();
+			cpu();
+			iconst(nn);
+			call("peek8", "(I)I");
+			put("regA");
+			set("memptr", nn + 1);
+			break;
+		case 0xeb:	// EX DE,HL
+			swap("regH", "regD");
+			swap("regL", "regE");
+			break;
+		case 0xd9:	// EXX
+			swap("regB", "regBx");
+			swap("regC", "regCx");
+			swap("regD", "regDx");
+			swap("regE", "regEx");
+			swap("regH", "regHx");
+			swap("regL", "regLx");
+			break;
+		case 0xc1: case 0xd1: case 0xe1: case 0xf1:	// POP rr
+			cpu();
+			cpu();
+			call("pop", "()I");
+			call("setReg" + (op == 0xf1 ? "AF" : reg16[(op >> 4) & 3]), "(I)V");
+			break;
+		case 0xc5: case 0xd5: case 0xe5: case 0xf5:	// PUSH rr
+			t += 1;
+			cpu();
+			cpu();
+			call("getReg" + (op == 0xf5 ? "AF" : reg16[(op >> 4) & 3]), "()I");
+			call("push", "(I)V");
+			write = true;
+			break;
+		case 0xc6: case 0xce: case 0xd6: case 0xde:	// ALU A,n
+		case 0xe6: case 0xee: case 0xf6: case 0xfe:
+			len = 2;
+			t += 3;
+			cpu();
+			iconst(n);
+			call(alu[r], "(I)V");
+			q = true;
+			break;
+
+		// Instructions that end the block
+		case 0xc3:	// JP nn
+			len = 3;
+			end(t + 6, false);
+			set("memptr", nn);
+			set("regPC", nn);
+			return len;
+		case 0xc2: case 0xca: case 0xd2: case 0xda:	// JP cc,nn
+		case 0xe2: case 0xea: case 0xf2: case 0xfa: {
+			len = 3;
+			end(t + 6, false);
+			set("memptr", nn);
+			set("regPC", (pc + len) & 0xffff);
+			int br = cond(r);
+			set("regPC", nn);
+			bind(br);
+			return len;
+		}
+		case 0xe9:	// JP (HL)
+			end(t, false);
+			cpu();
+			cpu();
+			call("getRegHL", "()I");
+			put("regPC");
+			return len;
+		case 0x18:	// JR e
+			len = 2;
+			end(t + 3 + 5, false);
+			set("memptr", (pc + len + (byte)n) & 0xffff);
+			set("regPC", (pc + len + (byte)n) & 0xffff);
+			return len;
+		case 0x20: case 0x28: case 0x30: case 0x38: {	// JR cc,e
+			len = 2;
+			end(t + 3, false);
+			set("regPC", (pc + len) & 0xffff);
+			int br = cond(r & 3);
+			add("ticks", 5);
+			set("memptr", (pc + len + (byte)n) & 0xffff);
+			set("regPC", (pc + len + (byte)n) & 0xffff);
+			bind(br);
+			return len;
+		}
+		case 0x10: {	// DJNZ e
+			len = 2;
+			end(t + 1 + 3, false);
+			set("regPC", (pc + len) & 0xffff);
+			add("regB", -1);
+			cpu();
+			get("regB");
+			int br = branch(IFEQ);
+			cpu();
+			bc.u1(DUP);
+			get("regB");
+			iconst(0xff);
+			bc.u1(IAND);
+			put("regB");
+			add("ticks", 5);
+			set("memptr", (pc + len + (byte)n) & 0xffff);
+			set("regPC", (pc + len + (byte)n) & 0xffff);
+			bind(br);
+			return len;
+		}
+		case 0xcd:	// CALL nn
+			len = 3;
+			end(t + 6 + 1, false);
+			set("memptr", nn);
+			set("regPC", (pc + len) & 0xffff);
+			cpu();
+			iconst((pc + len) & 0xffff);
+			call("push", "(I)V");
+			set("regPC", nn);
+			return len;
+		case 0xc4: case 0xcc: case 0xd4: case 0xdc:	// CALL cc,nn
+		case 0xe4: case 0xec: case 0xf4: case 0xfc: {
+			len = 3;
+			end(t + 6, false);
+			set("memptr", nn);
+			set("regPC", (pc + len) & 0xffff);
+			int br = cond(r);
+			add("ticks", 1);
+			cpu();
+			iconst((pc + len) & 0xffff);
+			call("push", "(I)V");
+			set("regPC", nn);
+			bind(br);
+			return len;
+		}
+		case 0xc9:	// RET
+			end(t, false);
+			ret();
+			return len;
+		case 0xc0: case 0xc8: case 0xd0: case 0xd8:	// RET cc
+		case 0xe0: case 0xe8: case 0xf0: case 0xf8: {
+			end(t + 1, false);
+			set("regPC", (pc + len) & 0xffff);
+			int br = cond(r);
+			ret();
+			bind(br);
+			return len;
+		}
+		case 0xc7: case 0xcf: case 0xd7: case 0xdf:	// RST p
+		case 0xe7: case 0xef: case 0xf7: case 0xff:
+			end(t + 1, false);
+			set("regPC", (pc + len) & 0xffff);
+			cpu();
+			iconst((pc + len) & 0xffff);
+			call("push", "(I)V");
+			set("memptr", op & 0x38);
+			set("regPC", op & 0x38);
+			return len;
+
+		default:
+			if (op >= 0x40 && op < 0x80 && op != 0x76) {	// LD r,r'
+				if (r == 6) {	// LD (HL),r
+					cpu();
+					cpu();
+					call("getRegHL", "()I");
+					cpu();
+					get(reg8[s]);
+					call("poke8", "(II)V");
+					write = true;
+				} else if (s == 6) {	// LD r,(HL)
+					cpu();
+					cpu();
+					cpu();
+					call("getRegHL", "()I");
+					call("peek8", "(I)I");
+					put(reg8[r]);
+				} else if (r != s) {
+					cpu();
+					cpu();
+					get(reg8[s]);
+					put(reg8[r]);
+				}
+				break;
+			}
+			if (op >= 0x80 && op < 0xc0) {	// ALU A,r / ALU A,(HL)
+				cpu();
+				if (s == 6) {
+					cpu();
+					cpu();
+					call("getRegHL", "()I");
+					call("peek8", "(I)I");
+				} else {
+					cpu();
+					get(reg8[s]);
+				}
+				call(alu[r], "(I)V");
+				q = true;
+				break;
+			}
+			return 0;
+		}
+		tStates += t;
+		++m1s;
+		flagQ = q;
+		// leave if the budget is used up, an interrupt could
+		// now be taken, or this wrote over any compiled code
+		cpu();
+		get("ticks");
+		iconst(tStates);
+		bc.u1(IADD);
+		bc.u1(ILOAD_2);
+		int brT = branch(IF_ICMPGE);
+		cpu();
+		call("intrPending", "()Z");
+		int brI = branch(IFNE);
+		int brW = -1;
+		if (write) {
+			cpu();
+			bc.u1(GETFIELD);
+			bc.u2(pool.field(Z80, "jit", "L" + SELF + ";"));
+			bc.u1(GETFIELD);
+			bc.u2(pool.field(SELF, "dirty", "Z"));
+			brW = branch(IFNE);
+		}
+		int br = branch(GOTO);
+		bind(brT);
+		bind(brI);
+		if (brW >= 0) {
+			bind(brW);
+		}
+		exit(pc + len);
+		bc.u1(RETURN);
+		bind(br);
+		return len;
+	}
+
+	// Account for the final instruction and store the
+	// common exit state. The caller then sets PC.
+	private void end(int t, boolean q) {
+		tStates += t;
+		++m1s;
+		flagQ = q;
+		done = true;
+		add("ticks", tStates);
+		add("regR", m1s);
+		setZ("flagQ", flagQ);
+		setZ("lastFlagQ", flagQ);
+	}
+
+	private void exit(int pc) {
+		add("ticks", tStates);
+		add("regR", m1s);
+		setZ("flagQ", flagQ);
+		setZ("lastFlagQ", flagQ);
+		set("regPC", pc & 0xffff);
+	}
+
+	// regPC = memptr = pop()
+	private void ret() {
+		cpu();
+		cpu();
+		call("pop", "()I");
+		put("regPC");
+		cpu();
+		cpu();
+		get("regPC");
+		put("memptr");
+	}
+
+	// Test condition 'cc', branch (to be bound) if not met.
+	private int cond(int cc) {
+		cpu();
+		if ((cc & 6) == 2) {	// NC, C
+			bc.u1(GETFIELD);
+			bc.u2(pool.field(Z80, "carryFlag", "Z"));
+		} else {
+			call("flags", "()I");
+			iconst(cc < 2 ? 0x40 : cc < 6 ? 0x04 : 0x80);
+			bc.u1(IAND);
+		}
+		return branch((cc & 1) == 0 ? IFNE : IFEQ);
+	}
+
+	private void cpu() {
+		bc.u1(ALOAD_1);
+	}
+
+	private void get(String field) {
+		bc.u1(GETFIELD);
+		bc.u2(pool.field(Z80, field, "I"));
+	}
+
+	private void put(String field) {
+		bc.u1(PUTFIELD);
+		bc.u2(pool.field(Z80, field, "I"));
+	}
+
+	private void call(String method, String desc) {
+		bc.u1(INVOKEVIRTUAL);
+		bc.u2(pool.method(Z80, method, desc));
+	}
+
+	private void set(String field, int value) {
+		cpu();
+		iconst(value);
+		put(field);
+	}
+
+	private void setZ(String field, boolean value) {
+		cpu();
+		iconst(value ? 1 : 0);
+		bc.u1(PUTFIELD);
+		bc.u2(pool.field(Z80, field, "Z"));
+	}
+
+	private void add(String field, int value) {
+		if (value == 0) {
+			return;
+		}
+		cpu();
+		bc.u1(DUP);
+		get(field);
+		iconst(value);
+		bc.u1(IADD);
+		put(field);
+	}
+
+	private void swap(String a, String b) {
+		cpu();
+		get(a);
+		cpu();
+		cpu();
+		get(b);
+		put(a);
+		cpu();
+		bc.u1(SWAP);
+		put(b);
+	}
+
+	private void iconst(int value) {
+		if (value >= -1 && value <= 5) {
+			bc.u1(ICONST_0 + value);
+		} else if (value >= -128 && value <= 127) {
+			bc.u1(BIPUSH);
+			bc.u1(value);
+		} else if (value >= -32768 && value <= 32767) {
+			bc.u1(SIPUSH);
+			bc.u2(value);
+		} else {
+			bc.u1(LDC_W);
+			bc.u2(pool.integer(value));
+		}
+	}
+
+	private int branch(int opcode) {
+		bc.u1(opcode);
+		bc.u2(0);
+		return bc.size() - 3;
+	}
+
+	// Branch at 'from' goes here. Stack is always empty,
+	// locals are unchanged, so the frame is the initial one.
+	private void bind(int from) {
+		int to = bc.size();
+		bc.put2(from + 1, to - from);
+		frames.add(to);
+	}
+
+	private byte[] classFile() {
+		Bytes cf = new Bytes();
+		int thisClass = pool.cls("z80core/Z80Block");
+		int superClass = pool.cls("java/lang/Object");
+		int iface = pool.cls(SELF + "$Block");
+		int init = pool.utf8("<init>");
+		int run = pool.utf8("run");
+		int v = pool.utf8("()V");
+		int runDesc = pool.utf8("(L" + Z80 + ";I)V");
+		int object = pool.method("java/lang/Object", "<init>", "()V");
+		int codeAttr = pool.utf8("Code");
+		int smt = frames.isEmpty() ? 0 : pool.utf8("StackMapTable");
+
+		cf.u4(0xcafebabe);
+		cf.u2(0);
+		cf.u2(55);	// Java 11, invokevirtual of nestmate private methods
+		cf.u2(pool.count);
+		cf.append(pool.buf);
+		cf.u2(0x0030);	// ACC_FINAL | ACC_SUPER
+		cf.u2(thisClass);
+		cf.u2(superClass);
+		cf.u2(1);
+		cf.u2(iface);
+		cf.u2(0);	// fields
+		cf.u2(2);	// methods
+
+		cf.u2(0x0001);	// public <init>()
+		cf.u2(init);
+		cf.u2(v);
+		cf.u2(1);
+		cf.u2(codeAttr);
+		cf.u4(12 + 5);
+		cf.u2(1);	// max_stack
+		cf.u2(1);	// max_locals
+		cf.u4(5);
+		cf.u1(ALOAD_0);
+		cf.u1(INVOKESPECIAL);
+		cf.u2(object);
+		cf.u1(RETURN);
+		cf.u2(0);	// exceptions
+		cf.u2(0);	// attributes
+
+		Bytes map = new Bytes();
+		if (smt != 0) {
+			map.u2(smt);
+			Bytes ent = new Bytes();
+			int prev = -1;
+			int num = 0;
+			for (int off : frames) {
+				if (off == prev) {
+					continue;
+				}
+				int delta = off - prev - 1;
+				if (delta < 64) {
+					ent.u1(delta);	// same_frame
+				} else {
+					ent.u1(251);	// same_frame_extended
+					ent.u2(delta);
+				}
+				prev = off;
+				++num;
+			}
+			map.u4(ent.size() + 2);
+			map.u2(num);
+			map.append(ent);
+		}
+		cf.u2(0x0001);	// public void run(Z80, int)
+		cf.u2(run);
+		cf.u2(runDesc);
+		cf.u2(1);
+		cf.u2(codeAttr);
+		cf.u4(12 + bc.size() + map.size());
+		cf.u2(6);	// max_stack
+		cf.u2(3);	// max_locals
+		cf.u4(bc.size());
+		cf.append(bc);
+		cf.u2(0);	// exceptions
+		cf.u2(smt != 0 ? 1 : 0);
+		cf.append(map);
+
+		cf.u2(0);	// class attributes
+		return cf.toArray();
+	}
+
+	private static final class Bytes {
+		private byte[] buf = new byte[256];
+		private int len = 0;
+
+		int size() { return len; }
+
+		void u1(int b) {
+			if (len == buf.length) {
+				buf = Arrays.copyOf(buf, len * 2);
+			}
+			buf[len++] = (byte)b;
+		}
+
+		void u2(int w) {
+			u1(w >> 8);
+			u1(w);
+		}
+
+		void u4(int w) {
+			u2(w >> 16);
+			u2(w);
+		}
+
+		void put2(int at, int w) {
+			buf[at] = (byte)(w >> 8);
+			buf[at + 1] = (byte)w;
+		}
+
+		void append(Bytes b) {
+			for (int x = 0; x < b.len; ++x) {
+				u1(b.buf[x]);
+			}
+		}
+
+		byte[] toArray() { return Arrays.copyOf(buf, len); }
+	}
+
+	// Constant pool, entries created on first use.
+	private static final class Pool {
+		final Bytes buf = new Bytes();
+		private final HashMap<String, Integer> map = new HashMap<String, Integer>();
+		int count = 1;
+
+		private int entry(String key) {
+			Integer x = map.get(key);
+			return x == null ? 0 : x;
+		}
+
+		private int add(String key) {
+			map.put(key, count);
+			return count++;
+		}
+
+		int utf8(String s) {
+			int x = entry("U" + s);
+			if (x == 0) {
+				buf.u1(1);
+				buf.u2(s.length());	// ASCII only
+				for (int i = 0; i < s.length(); ++i) {
+					buf.u1(s.charAt(i));
+				}
+				x = add("U" + s);
+			}
+			return x;
+		}
+
+		int cls(String name) {
+			int x = entry("C" + name);
+			if (x == 0) {
+				int n = utf8(name);
+				buf.u1(7);
+				buf.u2(n);
+				x = add("C" + name);
+			}
+			return x;
+		}
+
+		private int ref(int tag, String cls, String name, String desc) {
+			String key = tag + cls + "." + name + ":" + desc;
+			int x = entry(key);
+			if (x == 0) {
+				int c = cls(cls);
+				int nat = entry("N" + name + ":" + desc);
+				if (nat == 0) {
+					int n = utf8(name);
+					int d = utf8(desc);
+					buf.u1(12);
+					buf.u2(n);
+					buf.u2(d);
+					nat = add("N" + name + ":" + desc);
+				}
+				buf.u1(tag);
+				buf.u2(c);
+				buf.u2(nat);
+				x = add(key);
+			}
+			return x;
+		}
+
+		int field(String cls, String name, String desc) {
+			return ref(9, cls, name, desc);
+		}
+
+		int method(String cls, String name, String desc) {
+			return ref(10, cls, name, desc);
+		}
+
+		int integer(int value) {
+			int x = entry("I" + value);
+			if (x == 0) {
+				buf.u1(3);
+				buf.u4(value);
+				x = add("I" + value);
+			}
+			return x;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+// Copyright (c) 2026 Douglas Miller <durgadas311@gmail.com>
+
+package z80debug;
+
+import java.io.PrintStream;
+import z80core.*;
+
+// Hot-spot report from a Profiler, each address labeled with its
+// disassembly. For the Z180, addresses are physical and are shown
+// with the logical address they have in the current MMU mapping,
+// which is also what is disassembled (if not mapped, not disassembled).
+public class ProfileReport {
+	private Profiler prof;
+	private CPUDisassembler disas;
+	private Z180 z180;
+
+	public ProfileReport(Profiler prof, CPUDisassembler disas) {
+		this.prof = prof;
+		this.disas = disas;
+	}
+
+	public ProfileReport(Profiler prof, CPUDisassembler disas, Z180 cpu) {
+		this(prof, disas);
+		z180 = cpu;
+	}
+
+	// Logical address for physical 'pa', or -1
+	private int logical(int pa) {
+		for (int pg = 0; pg < 16; ++pg) {
+			int off = pa - z180.phyAddr(pg << 12);
+			if (off >= 0 && off < 0x1000) {
+				return (pg << 12) + off;
+			}
+		}
+		return -1;
+	}
+
+	// The 'top' addresses with the most T-states, most first
+	public void report(PrintStream out, int top) {
+		long tot = prof.getTotalCycles();
+		long ins = prof.getTotalCount();
+		out.format("%d instructions, %d T-states\n", ins, tot);
+		if (tot == 0) {
+			return;
+		}
+		out.format("%-11s %12s %12s %7s %7s\n",
+			"addr", "T-states", "count", "%", "cum%");
+		long cum = 0;
+		for (int pc : prof.hotSpots(top)) {
+			long cy = prof.getCycles(pc);
+			cum += cy;
+			int la = pc;
+			String a;
+			if (z180 != null) {
+				la = logical(pc);
+				a = la < 0 ? String.format("%05x(----)", pc) :
+					String.format("%05x(%04x)", pc, la);
+			} else {
+				a = String.format("%04x", pc);
+			}
+			out.format("%-11s %12d %12d %7.2f %7.2f  %s\n", a,
+				cy, prof.getCount(pc),
+				cy * 100.0 / tot, cum * 100.0 / tot,
+				la < 0 ? "" : disas.disas(la));
+		}
+	}
+}